@@ -0,0 +1,201 @@
+package interactome;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+
+import interactome.analysis.Analysis;
+import interactome.analysis.DynamicParameters;
+import interactome.data.BioDB;
+import interactome.data.Refseq;
+
+/*
+ * batch mode (-B manifest): BioDB is loaded once, and the samples of the manifest are analyzed in the same JVM.
+ * manifest: one sample per line, separated by tabs (empty lines and lines starting with '#' are skipped)
+ *   single|paired	input file (single-end) or input prefix (paired-end)	output dir	[directional mode (0, 1 or 2)]
+ * each sample runs on its own thread with its own Option, Analysis and log, which are inherited by
+ * the threads it starts (see Option, Logger). BioDB is shared; the self-matching tables are loaded once per table.
+ * samples are started in the manifest order as long as their estimated memory fits in the memory budget
+ * (batch_memory_mb, default: heap left after loading BioDB). at most -t samples run at once, and the
+ * threads (-t) are split among the samples running at once, so that a batch keeps about -t busy threads.
+ */
+public class Batch {
+	Option option;
+	ArrayList<Option> samples = new ArrayList<Option>();
+	
+	int succeeded = 0;
+	
+	public Batch(Option option) {
+		this.option = option;
+	}
+	
+	public boolean loadManifest() {
+		Logger.logf("\nloading batch manifest.");
+		
+		try {
+			FileReader fr = new FileReader(this.option.batch_manifest);
+			BufferedReader br = new BufferedReader(fr);
+			
+			String l;
+			int line = 0;
+			while ((l = br.readLine()) != null) {
+				line++;
+				if (l.trim().isEmpty() || l.startsWith("#")) continue;
+				
+				String[] row = l.split("\t");
+				if (row.length < 3 || !(row[0].equals("single") || row[0].equals("paired"))) {
+					Logger.errorf("invalid manifest line %d: %s", line, l);
+					br.close();
+					return false;
+				}
+				int directional_mode = row.length > 3 ? Integer.valueOf(row[3]) : 0;
+				if (directional_mode < 0 || directional_mode > 2) {
+					Logger.errorf("invalid directional mode at manifest line %d: %s", line, row[3]);
+					br.close();
+					return false;
+				}
+				if (row[0].equals("single") && row[1].equals("-")) {
+					Logger.errorf("stdin input cannot be used in batch mode (manifest line %d).", line);
+					br.close();
+					return false;
+				}
+				
+				this.samples.add(this.option.sample(row[0].equals("paired"), row[1], row[2], directional_mode));
+			}
+			
+			br.close();
+			fr.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		if (this.samples.isEmpty()) {
+			Logger.errorf("no sample in batch manifest.");
+			return false;
+		}
+		Logger.logf("%d samples.", this.samples.size());
+		return true;
+	}
+	
+	/*
+	 * analyze all samples; returns false if any sample failed.
+	 */
+	public boolean run() {
+		if (this.option.settings.get("bias_solver").equals("R")) {
+			// JRI allows only one R engine in a JVM
+			Logger.errorf("bias_solver=R cannot be used in batch mode.");
+			return false;
+		}
+		
+		// memory budget and per-sample estimate, in MB
+		int budget = Integer.valueOf(this.option.settings.get("batch_memory_mb"));
+		if (budget <= 0) {
+			System.gc();
+			Runtime runtime = Runtime.getRuntime();
+			budget = (int)((runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) >> 20);
+		}
+		int estimate = Integer.valueOf(this.option.settings.get("batch_sample_memory_mb"));
+		if (estimate <= 0) estimate = this.estimateSampleMemory();
+		estimate = Math.max(1, Math.min(estimate, budget));
+		Logger.logf("\nbatch memory budget: %d MB, %d MB per sample.", budget, estimate);
+		
+		// samples at once (by memory, threads and the number of samples), and threads of each sample
+		int concurrent = Math.max(1, Math.min(Math.min(budget / estimate, this.option.threads), this.samples.size()));
+		int sample_threads = Math.max(1, this.option.threads / concurrent);
+		for (Option sample : this.samples) sample.threads = sample_threads;
+		Logger.logf("%d threads: up to %d samples at once, %d threads per sample.", this.option.threads, concurrent, sample_threads);
+		
+		final Semaphore memory = new Semaphore(Math.max(1, budget));
+		final Semaphore slots = new Semaphore(concurrent);
+		final int permits = estimate;
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i=0; i<this.samples.size(); i++) {
+			final Option sample = this.samples.get(i);
+			final String name = String.format("[%d/%d %s] ", i+1, this.samples.size(), new File(sample.output_path).getName());
+			
+			slots.acquireUninterruptibly();
+			memory.acquireUninterruptibly(permits);
+			Thread thread = new Thread("sample-" + (i+1)) {
+				@Override
+				public void run() {
+					try {
+						if (analyze(sample, name)) {
+							synchronized (Batch.this) {
+								succeeded++;
+							}
+						}
+					} finally {
+						memory.release(permits);
+						slots.release();
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		
+		Logger.logf("\n%d of %d samples finished.", this.succeeded, this.samples.size());
+		return this.succeeded == this.samples.size();
+	}
+	
+	// analysis of a sample on the current thread (as Main does for a single sample)
+	private boolean analyze(Option sample, String name) {
+		Option.setInstance(sample);
+		
+		new File(sample.output_path).mkdirs();
+		Logger.initialize(name);
+		Logger.logf("input %s: %s", sample.input_type_paired ? "prefix (paired-ended)" : "file (single-ended)",
+				sample.input_type_paired ? sample.input_prefix_paired : sample.input_file_single);
+		Logger.logf("directional mode: %d", sample.directional_mode);
+		
+		Analysis analysis = null;
+		try {
+			analysis = Analysis.createInstance();
+			if (!analysis.run() || !analysis.outputResults()) {
+				Logger.errorf("\nAnalysis failed.");
+				return false;
+			}
+			Logger.logf("\nAnalysis finished.");
+			return true;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			Logger.errorf("\nAnalysis failed: %s", e);
+			return false;
+		} finally {
+			// remove the count file of a failed sample as well, not at the end of the batch
+			if (analysis != null) analysis.close();
+			Logger.close();
+		}
+	}
+	
+	/*
+	 * estimated heap of a sample: per-position mappability, counts (unless coverage_store=mmap) and
+	 * residues (residue_store=arrays) of all refseqs, the weight buffer of the weighted mappability,
+	 * the read-ahead buffer, and a fixed margin.
+	 */
+	private int estimateSampleMemory() {
+		long total_length = 0;
+		for (Refseq refseq : BioDB.getInstance().all_refseqs) {
+			if (!refseq.is_invalid) total_length += refseq.length;
+		}
+		long bytes_per_position = 4;
+		if (!this.option.settings.get("coverage_store").equals("mmap")) bytes_per_position += 8;
+		if (this.option.settings.get("residue_store").equals("arrays")) bytes_per_position += 8;
+		
+		long bytes = total_length * bytes_per_position + DynamicParameters.weightedMappabilityBufferBytes(
+				Integer.valueOf(this.option.settings.get("mappability_max_match_length")));
+		return (int)(bytes >> 20) + Integer.valueOf(this.option.settings.get("input_read_ahead_mb")) + 256;
+	}
+}
@@ -4,19 +4,81 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
+/*
+ * messages are put into a bounded ring buffer without locks, and formatted and written (to the console and to
+ * the log file) by a background writer thread, so that logging threads do not wait for formatting or file writes.
+ * log files are flushed in batches, when the ring buffer runs empty. a thread waits only while the ring buffer
+ * is full. close() and flush() wait until the messages logged before them are written.
+ * arguments are formatted later, so they should not be changed after logging (numbers and strings are immutable).
+ */
 public class Logger {
-	private static FileWriter _fw;
-	private static BufferedWriter _bw;
-	private static boolean _active = false;
+	static final int CAPACITY = 1 << 14; // messages in the ring buffer (a power of 2)
+	
+	// log file and console prefix of a run. each sample of a batch (and the threads it starts) has its own.
+	private static class Log {
+		FileWriter fw;
+		BufferedWriter bw;
+		String prefix = "";
+		boolean closed = false; // by the writer
+	}
+	private static final InheritableThreadLocal<Log> _log = new InheritableThreadLocal<Log>();
+	
+	// a message, or a marker (done != null) which is counted down when the messages before it are written
+	private static class Record {
+		Log log;
+		boolean error;
+		String format;
+		Object[] args;
+		Log close; // log closed at the marker
+		CountDownLatch done;
+	}
+	
+	private static final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<Record>(CAPACITY);
+	private static final AtomicLong tail = new AtomicLong(0); // next sequence to be claimed by a logging thread
+	private static volatile long head = 0; // next sequence to be written (advanced by the writer only)
+	private static volatile boolean writer_waiting = false;
+	private static final Thread writer;
+	
+	static {
+		writer = new Thread("logger") {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		
+		// write the remaining messages at exit
+		Runtime.getRuntime().addShutdownHook(new Thread("logger-flush") {
+			@Override
+			public void run() {
+				await(mark(null), 5000);
+			}
+		});
+	}
 	
 	public static void initialize() {
+		initialize("");
+	}
+	
+	// start a log file in the output path of the current Option; console lines are prefixed by prefix
+	public static void initialize(String prefix) {
 		String logFileName = Option.getInstance().output_path + "/"
 				+ (new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss")).format(new Date()) + ".log";
+		Log log = new Log();
+		log.prefix = prefix;
 		try {
-			_fw = new FileWriter(logFileName);
-			_bw = new BufferedWriter(_fw);
-			_active = true;
+			log.fw = new FileWriter(logFileName);
+			log.bw = new BufferedWriter(log.fw);
+			_log.set(log);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -25,35 +87,118 @@ public class Logger {
 	}
 	
 	public static void logf(String format, Object... args) {
-		System.out.printf(format + "\n", args);
-
-		if (!_active) return;
-		try {
-			_bw.write(String.format(format + "\n", args));
-			_bw.flush();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		log(false, format, args);
 	}
 	
 	public static void errorf(String format, Object... args) {
-		System.err.printf(format + "\n", args);
-
-		if (!_active) return;
-		try {
-			_bw.write(String.format(format + "\n", args));
-			_bw.flush();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}	
+		log(true, format, args);
+	}
+	
+	private static void log(boolean error, String format, Object[] args) {
+		Record record = new Record();
+		record.log = _log.get();
+		record.error = error;
+		record.format = format;
+		record.args = args;
+		put(record);
+	}
+	
+	// wait until the messages logged so far are written
+	public static void flush() {
+		await(mark(null), 0);
+	}
 	
+	// write the messages of the current log and close its file
 	public static void close() {
+		Log log = _log.get();
+		await(mark(log), 0);
+		_log.remove();
+	}
+	
+	// put a marker which closes log (if not null)
+	private static CountDownLatch mark(Log close) {
+		Record record = new Record();
+		record.close = close;
+		record.done = new CountDownLatch(1);
+		put(record);
+		return record.done;
+	}
+	
+	private static void put(Record record) {
+		long sequence = tail.getAndIncrement();
+		while (sequence - head >= CAPACITY) {
+			// full: wait for the writer
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(100000L);
+		}
+		ring.set((int)(sequence & (CAPACITY - 1)), record);
+		if (writer_waiting) LockSupport.unpark(writer);
+	}
+	
+	// wait for a marker at most timeout ms (0: no limit)
+	private static void await(CountDownLatch done, long timeout) {
 		try {
-			_bw.close();
-			_fw.close();
-		} catch (Exception e) {
-			e.printStackTrace();
+			if (timeout > 0) done.await(timeout, TimeUnit.MILLISECONDS);
+			else done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	// writer thread: write the messages in the sequence order, and flush when the ring buffer runs empty
+	private static void drain() {
+		HashSet<Log> unflushed = new HashSet<Log>();
+		while (true) {
+			int index = (int)(head & (CAPACITY - 1));
+			Record record = ring.get(index);
+			if (record == null) {
+				flush(unflushed);
+				writer_waiting = true;
+				if (ring.get(index) == null) LockSupport.parkNanos(10000000L);
+				writer_waiting = false;
+				continue;
+			}
+			ring.set(index, null);
+			head++;
+			
+			try {
+				if (record.done != null) {
+					flush(unflushed);
+					if (record.close != null && !record.close.closed) {
+						record.close.closed = true;
+						record.close.bw.close();
+						record.close.fw.close();
+					}
+					record.done.countDown();
+					continue;
+				}
+				
+				String message = String.format(record.format + "\n", record.args);
+				String prefix = record.log == null ? "" : record.log.prefix;
+				if (record.error) System.err.print(prefix + message);
+				else System.out.print(prefix + message);
+				
+				if (record.log != null && record.log.bw != null && !record.log.closed) {
+					record.log.bw.write(message);
+					unflushed.add(record.log);
+				}
+			} catch (Throwable e) {
+				e.printStackTrace();
+				if (record.done != null) record.done.countDown();
+			}
+		}
+	}
+	
+	private static void flush(HashSet<Log> unflushed) {
+		for (Log log : unflushed) {
+			try {
+				log.bw.flush();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
 		}
+		unflushed.clear();
+		System.out.flush();
+		System.err.flush();
 	}
 }
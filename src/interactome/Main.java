@@ -17,8 +17,10 @@ public class Main {
 			return;
 		}
 		
-		// initialize logger
-		Logger.initialize();
+		// initialize logger (build-reference logs into the output path only if given)
+		if (option.output_path != null) {
+			Logger.initialize();
+		}
 		
 		// load settings.properties
 		if (!option.loadSettingFile()) {
@@ -26,6 +28,25 @@ public class Main {
 			return;
 		}
 		
+		// build-reference: write the reference bundle
+		if (option.build_reference) {
+			if (BioDB.buildReference()) {
+				Logger.logf("\nbuilding reference finished.");
+			}
+			Logger.close();
+			return;
+		}
+		
+		// load batch manifest (-B)
+		Batch batch = null;
+		if (option.batch_manifest != null) {
+			batch = new Batch(option);
+			if (!batch.loadManifest()) {
+				Logger.close();
+				return;
+			}
+		}
+		
 		// initialize BioDB
 		BioDB bioDB = BioDB.createInstance();
 		if (bioDB == null) {
@@ -33,6 +54,15 @@ public class Main {
 			return;
 		}
 		
+		// analyze the samples of the manifest with the loaded BioDB
+		if (batch != null) {
+			if (batch.run()) {
+				Logger.logf("\nBatch finished.");
+			}
+			Logger.close();
+			return;
+		}
+		
 		// start analysis
 		Analysis analysis = Analysis.createInstance();
 		
@@ -3,14 +3,15 @@ package interactome;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Properties;
 
 import gnu.getopt.*;
 
 public class Option {
-	private static Option _instance;
-	public static Option getInstance() { return Option._instance; }
+	private static final InheritableThreadLocal<Option> _instance = new InheritableThreadLocal<Option>(); // per sample (see Batch)
+	public static Option getInstance() { return Option._instance.get(); }
 	
 	// command-line options
 	public String output_path = null;
@@ -18,6 +19,7 @@ public class Option {
 	public String input_file_single = null;
 	public String input_prefix_paired = null;
 	public boolean input_type_paired = false;
+	public boolean input_bam = false;		// bam input instead of sam
 //	public int input_paired_length = 0;
 
 	public int read_length = 50; 		// only for paired-ended mode
@@ -29,6 +31,11 @@ public class Option {
 	public boolean output_cancer_fastq = false;
 	public boolean output_stromal_fastq = false;
 	
+	public int threads = Runtime.getRuntime().availableProcessors(); // number of worker threads
+	
+	public String batch_manifest = null; // manifest of samples (batch mode, see Batch)
+	public boolean build_reference = false; // build-reference command (writes reference_bundle)
+	
 	// analysis settings (e.g., parameter files)
 	public String setting_file_name = "settings.properties";
 	public HashMap<String, String> settings;
@@ -43,16 +50,23 @@ public class Option {
 	public static Option createInstance(String[] args) {
 		Option instance = new Option();
 		
-		Getopt options = new Getopt("Interaction", args, "s:p:o:mgd:l:yz");
+		// "build-reference" command writes the reference bundle instead of analyzing a sample
+		if (args.length > 0 && args[0].equals("build-reference")) {
+			instance.build_reference = true;
+			args = Arrays.copyOfRange(args, 1, args.length);
+			Logger.logf("command: build-reference");
+		}
+		
+		Getopt options = new Getopt("Interaction", args, "s:p:o:mgd:l:yzt:bB:");
 		int c;
 		
 		while ((c = options.getopt()) != -1) {
 			switch (c) {
-			case 's':	// single-end input prefix
+			case 's':	// single-end input prefix ("-" for stdin)
 				instance.input_file_single = options.getOptarg();
 				instance.input_type_paired = false;
 				Logger.logf("input mode: single-ended");
-				Logger.logf("input file: %s", instance.input_file_single);
+				Logger.logf("input file: %s", instance.input_file_single.equals("-") ? "stdin" : instance.input_file_single);
 				break;
 			case 'p':	// paired-end input prefix
 				instance.input_prefix_paired = options.getOptarg();
@@ -91,11 +105,29 @@ public class Option {
 				instance.output_stromal_fastq = true;
 				Logger.logf("output stromal fastq");
 				break;
+			case 'b':	// bam input
+				instance.input_bam = true;
+				Logger.logf("input format: bam");
+				break;
+			case 't':	// number of threads
+				instance.threads = Math.max(1, Integer.valueOf(options.getOptarg()));
+				Logger.logf("threads: %d", instance.threads);
+				break;
+			case 'B':	// batch manifest
+				instance.batch_manifest = options.getOptarg();
+				Logger.logf("batch manifest: %s", instance.batch_manifest);
+				break;
 			}
 		}
 		
 		// error if both or none of (-p, -s) was specified
-		if (!((instance.input_file_single == null) ^ (instance.input_prefix_paired == null))) {
+		// (inputs are given by the manifest in batch mode, and build-reference takes no input)
+		if (instance.batch_manifest != null || instance.build_reference) {
+			if (instance.input_file_single != null || instance.input_prefix_paired != null) {
+				Logger.errorf("-s or -p option cannot be specified with -B option or build-reference.");
+				return null;
+			}
+		} else if (!((instance.input_file_single == null) ^ (instance.input_prefix_paired == null))) {
 			Logger.errorf("you should specify one of -s or -p option.");
 			return null;
 		}
@@ -111,14 +143,43 @@ public class Option {
 			return null;
 		}*/
 		
-		// error if output path was not specified
-		if (instance.output_path == null) {
+		// error if output path was not specified (optional for build-reference, where it is the directory of the log)
+		if (instance.output_path == null && !instance.build_reference) {
 			Logger.errorf("you should specify output path by -o option.");
 			return null;
 		}
 		
-		Option._instance = instance;
-		return Option._instance;
+		Option._instance.set(instance);
+		return Option._instance.get();
+	}
+	
+	/*
+	 * options of a sample of a batch: input, output path and directional mode are given by the manifest,
+	 * and the others (including the loaded settings) are shared with the batch options.
+	 */
+	Option sample(boolean paired, String input, String output_path, int directional_mode) {
+		Option sample = new Option();
+		sample.input_type_paired = paired;
+		if (paired) sample.input_prefix_paired = input;
+		else sample.input_file_single = input;
+		sample.output_path = output_path;
+		sample.directional_mode = directional_mode;
+		
+		sample.input_bam = this.input_bam;
+		sample.read_length = this.read_length;
+		sample.output_mappability = this.output_mappability;
+		sample.output_gcpercent = this.output_gcpercent;
+		sample.output_cancer_fastq = this.output_cancer_fastq;
+		sample.output_stromal_fastq = this.output_stromal_fastq;
+		sample.threads = this.threads;
+		sample.setting_file_name = this.setting_file_name;
+		sample.settings = this.settings;
+		return sample;
+	}
+	
+	// make options current for this thread (and the threads started from it)
+	static void setInstance(Option option) {
+		Option._instance.set(option);
 	}
 	
 	/*
@@ -149,6 +210,25 @@ public class Option {
 			};
 			HashMap<String, String> optional_items = new HashMap<String, String>();
 			optional_items.put("parameter_gene_minimum_length", "8000");
+			optional_items.put("parameter_gene_maximum_count", "200");
+			optional_items.put("mappability_max_match_length", "400"); // longest match length of the weighted mappability (up to 1000)
+			optional_items.put("mappability_cache", ""); // directory of cached weighted mappabilities (empty: none)
+			optional_items.put("mappability_cache_tolerance", "0"); // largest difference of match-length ratios to reuse a cached entry
+			optional_items.put("input_read_ahead_mb", "64"); // read-ahead buffer for stdin or named pipe input
+			optional_items.put("coverage_store", "heap"); // heap or mmap (per-position counts in a memory-mapped file)
+			optional_items.put("bias_solver", "java"); // java (in-process poisson glm) or R (through JRI)
+			optional_items.put("bias_design", "cells"); // cells (rows grouped by gc percent and distance) or rows
+			optional_items.put("residue_store", "histogram"); // histogram (heat map counts only) or arrays (residues of every position)
+			optional_items.put("heatmap_format", "png"); // png, tsv (raw histograms, without AWT) or both
+			optional_items.put("reference_bundle", ""); // binary snapshot of the reference files written by build-reference (empty: none)
+			optional_items.put("batch_memory_mb", "0"); // memory for the samples of a batch (0: heap left after loading BioDB)
+			optional_items.put("batch_sample_memory_mb", "0"); // memory of a sample of a batch (0: estimated from the refseq lengths)
+			
+			// values allowed for the optional items which select a mode
+			HashMap<String, String[]> choices = new HashMap<String, String[]>();
+			choices.put("coverage_store", new String[] {"heap", "mmap"});
+			choices.put("residue_store", new String[] {"histogram", "arrays"});
+			choices.put("heatmap_format", new String[] {"png", "tsv", "both"});
 			
 			for (String item : required_items) {
 				String value = config.getProperty(item);
@@ -169,6 +249,13 @@ public class Option {
 					Logger.logf("%s: %s", key, value);
 				}
 			}
+			
+			for (String key : choices.keySet()) {
+				if (!Arrays.asList(choices.get(key)).contains(this.settings.get(key))) {
+					Logger.errorf("unknown %s: %s (one of %s)", key, this.settings.get(key), String.join(", ", choices.get(key)));
+					return false;
+				}
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
@@ -11,6 +11,7 @@ import interactome.Option;
 import interactome.data.BioDB;
 import interactome.data.Gene;
 import interactome.data.Interaction;
+import interactome.data.InteractionPlan;
 import interactome.input.GeneInput;
 import interactome.input.Input;
 import interactome.input.PairedEndInput;
@@ -18,21 +19,28 @@ import interactome.input.RefseqInput;
 import interactome.input.SingleEndInput;
 
 public class Analysis {
-	private static Analysis _instance;
+	private static final InheritableThreadLocal<Analysis> _instance = new InheritableThreadLocal<Analysis>(); // per sample (see Batch)
 	public static Analysis createInstance() {
-		Analysis._instance = new Analysis();
-		return Analysis._instance;
+		Analysis._instance.set(new Analysis());
+		return Analysis._instance.get();
 	}
 	public static Analysis getInstance() {
-		return Analysis._instance;
+		return Analysis._instance.get();
 	}
 	
 	public Input input;
 	public DynamicParameters dp;
 	public ResultsWriter rw;
+	public Interaction[] interactions; // analyze results of this sample, in the order of BioDB.interactions
 	
 	private Analysis() {
 		this.input = null;
+		
+		Interaction[] interactions = BioDB.getInstance().interactions;
+		this.interactions = new Interaction[interactions.length];
+		for (int k=0; k<interactions.length; k++) {
+			this.interactions[k] = new Interaction(interactions[k]);
+		}
 	}
 	
 	public boolean run() {
@@ -52,8 +60,14 @@ public class Analysis {
 		
 		// execute bias correction
 		BiasCorrector bc = BiasCorrector.createInstance(this.input, this.dp);
-		bc.correctBias();
-		bc.calculateRegressionResidues();
+		try {
+			if (!bc.correctBias()) {
+				return false;
+			}
+			bc.calculateRegressionResidues();
+		} finally {
+			bc.close();
+		}
 		
 		// normalize expression sums
 		this.normalize();
@@ -65,7 +79,7 @@ public class Analysis {
 	}
 	
 	public boolean outputResults() {
-		this.rw = ResultsWriter.createInstance(this.input, this.dp);
+		this.rw = ResultsWriter.createInstance(this.input, this.dp, this.interactions);
 		
 		Logger.logf("\nwriting results.");
 		
@@ -79,9 +93,17 @@ public class Analysis {
 		// write heatmaps
 		this.rw.drawHeatmaps();
 		
+		// counts are no longer used
+		this.close();
+		
 		return true;
 	}
 	
+	// release the resources of the input (e.g., the memory-mapped count file); may be called more than once
+	public void close() {
+		if (this.input != null) this.input.close();
+	}
+	
 	private Input loadInput() {
 		Option option = Option.getInstance();
 		
@@ -110,7 +132,7 @@ public class Analysis {
 			
 			RefseqInput[] refinputs = new RefseqInput[gene.variants.size()];
 			for (int i=0; i<gene.variants.size(); i++) {
-				refinputs[i] = input.refseq_inputs.get(gene.variants.get(i).refseq_id);
+				refinputs[i] = input.refseq_inputs[gene.variants.get(i).ordinal];
 			}
 			
 			// accept refseq with maximum true_expression
@@ -176,50 +198,72 @@ public class Analysis {
 
 		Logger.logf("\nanalyzing interactions.");
 		
-		for (Interaction interaction : biodb.interactions) {
-			// select cancer-ligand
-			for (Gene gene : interaction.ligand_cancer) {
-				GeneInput ginput = input.gene_inputs.get(gene.entrez_id);
-				interaction.expression_ligand_cancer += ginput.normalizedExpression;
-				interaction.raw_ligand_cancer += ginput.representativeRefseqInput.rawCount;
-			}
-			// select stromal-ligand
-			for (Gene gene : interaction.ligand_stroma) {
-				GeneInput ginput = input.gene_inputs.get(gene.entrez_id);
-				interaction.expression_ligand_stroma += ginput.normalizedExpression;
-				interaction.raw_ligand_stroma += ginput.representativeRefseqInput.rawCount;
-			}
-			// select cancer-receptor
-			for (Gene gene : interaction.receptor_cancer) {
-				GeneInput ginput = input.gene_inputs.get(gene.entrez_id);
-				interaction.expression_receptor_cancer += ginput.normalizedExpression;
-				interaction.raw_receptor_cancer += ginput.representativeRefseqInput.rawCount;
+		// expressions of genes by ordinal, summed over the homologs of each interaction by the plan
+		InteractionPlan plan = biodb.interaction_plan;
+		double[] expressions = new double[biodb.all_genes.length];
+		long[] raw_counts = new long[biodb.all_genes.length];
+		for (int g=0; g<biodb.all_genes.length; g++) {
+			GeneInput ginput = input.gene_input_array[g];
+			expressions[g] = ginput.normalizedExpression;
+			if (ginput.representativeRefseqInput != null) raw_counts[g] = ginput.representativeRefseqInput.rawCount;
+		}
+		
+		for (int k=0; k<this.interactions.length; k++) {
+			Interaction interaction = this.interactions[k];
+			interaction.expression_ligand_cancer = plan.sum(InteractionPlan.LIGAND_CANCER, k, expressions);
+			interaction.expression_ligand_stroma = plan.sum(InteractionPlan.LIGAND_STROMA, k, expressions);
+			interaction.expression_receptor_cancer = plan.sum(InteractionPlan.RECEPTOR_CANCER, k, expressions);
+			interaction.expression_receptor_stroma = plan.sum(InteractionPlan.RECEPTOR_STROMA, k, expressions);
+			interaction.raw_ligand_cancer = plan.sum(InteractionPlan.LIGAND_CANCER, k, raw_counts);
+			interaction.raw_ligand_stroma = plan.sum(InteractionPlan.LIGAND_STROMA, k, raw_counts);
+			interaction.raw_receptor_cancer = plan.sum(InteractionPlan.RECEPTOR_CANCER, k, raw_counts);
+			interaction.raw_receptor_stroma = plan.sum(InteractionPlan.RECEPTOR_STROMA, k, raw_counts);
+		}
+
+		// group interactions by ligand and by receptor, and sum up / rank the expressions of each group once
+		InteractionGroups ligand_groups = new InteractionGroups(this.interactions, false);
+		InteractionGroups receptor_groups = new InteractionGroups(this.interactions, true);
+		
+		double[] sum_of_receptor_expression_cancer = new double[ligand_groups.size()];
+		double[] sum_of_receptor_expression_stroma = new double[ligand_groups.size()];
+		InteractionResult[][] receptor_rankings = new InteractionResult[ligand_groups.size()][];
+		for (int g=0; g<ligand_groups.size(); g++) {
+			for (Interaction _inter : ligand_groups.members[g]) {
+				sum_of_receptor_expression_cancer[g] += _inter.expression_receptor_cancer;
+				sum_of_receptor_expression_stroma[g] += _inter.expression_receptor_stroma;
 			}
-			// select stromal-receptor
-			for (Gene gene : interaction.receptor_stroma) {
-				GeneInput ginput = input.gene_inputs.get(gene.entrez_id);
-				interaction.expression_receptor_stroma += ginput.normalizedExpression;
-				interaction.raw_receptor_stroma += ginput.representativeRefseqInput.rawCount;
+			receptor_rankings[g] = this.rankPartners(ligand_groups.members[g], true);
+		}
+		
+		double[] sum_of_ligand_expression = new double[receptor_groups.size()];
+		double[] sum_of_ligand_expression_cancer = new double[receptor_groups.size()];
+		double[] sum_of_ligand_expression_stroma = new double[receptor_groups.size()];
+		InteractionResult[][] ligand_rankings = new InteractionResult[receptor_groups.size()][];
+		for (int g=0; g<receptor_groups.size(); g++) {
+			for (Interaction _inter : receptor_groups.members[g]) {
+				sum_of_ligand_expression[g] += _inter.expression_ligand_cancer;
+				sum_of_ligand_expression[g] += _inter.expression_ligand_stroma;
+				sum_of_ligand_expression_cancer[g] += _inter.expression_ligand_cancer;
+				sum_of_ligand_expression_stroma[g] += _inter.expression_ligand_stroma;
 			}
+			ligand_rankings[g] = this.rankPartners(receptor_groups.members[g], false);
 		}
-
-		/*
-		 * KEGGHPRD_result
-		 */
-		for (Interaction interaction : biodb.interactions) {
+		
+		for (int k=0; k<this.interactions.length; k++) {
+			Interaction interaction = this.interactions[k];
+			int lg = ligand_groups.group_of[k];
+			int rg = receptor_groups.group_of[k];
+			
+			/*
+			 * KEGGHPRD_result
+			 */
 			double exp_lig_cancer = interaction.expression_ligand_cancer;
 			double exp_rec_cancer = interaction.expression_receptor_cancer;
 			double exp_lig_stroma = interaction.expression_ligand_stroma;
 			double exp_rec_stroma = interaction.expression_receptor_stroma;
 			
 			// sum of other ligand expression
-			double sum_of_ligand_expression_for_same_receptor = 0;
-			for (Interaction _inter : biodb.interactions) {
-				if (interaction.receptor_symbol.equals(_inter.receptor_symbol)) {
-					sum_of_ligand_expression_for_same_receptor += _inter.expression_ligand_cancer;
-					sum_of_ligand_expression_for_same_receptor += _inter.expression_ligand_stroma;
-				}
-			}
+			double sum_of_ligand_expression_for_same_receptor = sum_of_ligand_expression[rg];
 			
 			if (interaction.valid_cancer_to_stroma) {
 				// cancer to stroma interaction average
@@ -263,195 +307,82 @@ public class Analysis {
 				interaction.receptor_ratio_stroma = -1;
 				interaction.receptor_ratio_cancer = -1;
 			}
-		}
-		
-		/*
-		 * KEGGHPRD_result_cancer_ligand
-		 */		
-		for (Interaction interaction : biodb.interactions) {
-			// enumerate all receptor expressions
-			double sum_of_receptor_expression_cancer = 0;
-			double sum_of_receptor_expression_stroma = 0;
-			for (Interaction _inter : biodb.interactions) {
-				if (interaction.ligand_symbol.equals(_inter.ligand_symbol)) {
-					sum_of_receptor_expression_cancer += _inter.expression_receptor_cancer;
-					sum_of_receptor_expression_stroma += _inter.expression_receptor_stroma;
-				}
-			}
 			
-			// average
-			interaction.cancer_ligand_average = Math.sqrt(
-				(sum_of_receptor_expression_cancer + sum_of_receptor_expression_stroma)
-				* interaction.expression_ligand_cancer);
-			
-			// receptor ratio
-			if (sum_of_receptor_expression_cancer + sum_of_receptor_expression_stroma > 0)
-				interaction.cancer_ligand_receptor_ratio = sum_of_receptor_expression_cancer / (sum_of_receptor_expression_cancer + sum_of_receptor_expression_stroma);
-			else
-				interaction.cancer_ligand_receptor_ratio = -1;
-				
-			// receptor ranking
-			ArrayList<InteractionResult> results = new ArrayList<Analysis.InteractionResult>();
-			HashSet<String> used = new HashSet<String>();
-			for (Interaction _inter : biodb.interactions) {
-				if (interaction.ligand_symbol.equals(_inter.ligand_symbol)) {
-					double rec_expression = 0;
-					rec_expression += _inter.expression_receptor_cancer;
-					rec_expression += _inter.expression_receptor_stroma;
-					if (!used.contains(_inter.receptor_symbol)) {
-						results.add(new InteractionResult(_inter.receptor_symbol, rec_expression));
-						used.add(_inter.receptor_symbol);
-					}
-				}
-			}
-			Collections.sort(results);
-			Collections.reverse(results);
-			interaction.cancer_ligand_receptor_ranking = new InteractionResult[results.size()];
-			for (int i=0; i<results.size(); i++)
-				interaction.cancer_ligand_receptor_ranking[i] = results.get(i);
-		}
-		
-		/*
-		 * KEGGHPRD_result_cancer_receptor
-		 */		
-		for (Interaction interaction : biodb.interactions) {
-			// enumerate all receptor expressions
-			double sum_of_ligand_expression_cancer = 0;
-			double sum_of_ligand_expression_stroma = 0;
-			for (Interaction _inter : biodb.interactions) {
-				if (interaction.receptor_symbol.equals(_inter.receptor_symbol)) {
-					sum_of_ligand_expression_cancer += _inter.expression_ligand_cancer;
-					sum_of_ligand_expression_stroma += _inter.expression_ligand_stroma;
-				}
-			}
+			/*
+			 * KEGGHPRD_result_cancer_ligand / KEGGHPRD_result_stroma_ligand
+			 */
+			double receptor_sum = sum_of_receptor_expression_cancer[lg] + sum_of_receptor_expression_stroma[lg];
 			
 			// average
-			interaction.cancer_receptor_average = Math.sqrt(
-				(sum_of_ligand_expression_cancer + sum_of_ligand_expression_stroma)
-				* interaction.expression_receptor_cancer);
+			interaction.cancer_ligand_average = Math.sqrt(receptor_sum * interaction.expression_ligand_cancer);
+			interaction.stroma_ligand_average = Math.sqrt(receptor_sum * interaction.expression_ligand_stroma);
 			
 			// receptor ratio
-			if (sum_of_ligand_expression_cancer + sum_of_ligand_expression_stroma > 0)
-				interaction.cancer_receptor_ligand_ratio = sum_of_ligand_expression_cancer / (sum_of_ligand_expression_cancer + sum_of_ligand_expression_stroma);
-			else
-				interaction.cancer_receptor_ligand_ratio = -1;
-			
-			// ligand ranking
-			ArrayList<InteractionResult> results = new ArrayList<Analysis.InteractionResult>();
-			HashSet<String> used = new HashSet<String>();
-			for (Interaction _inter : biodb.interactions) {
-				if (interaction.receptor_symbol.equals(_inter.receptor_symbol)) {
-					double lig_expression = 0;
-					lig_expression += _inter.expression_ligand_cancer;
-					lig_expression += _inter.expression_ligand_stroma;
-					if (!used.contains(_inter.ligand_symbol)) {
-						results.add(new InteractionResult(_inter.ligand_symbol, lig_expression));
-						used.add(_inter.ligand_symbol);
-					}
-				}
-			}
-			Collections.sort(results);
-			Collections.reverse(results);
-			interaction.cancer_receptor_ligand_ranking = new InteractionResult[results.size()];
-			for (int i=0; i<results.size(); i++)
-				interaction.cancer_receptor_ligand_ranking[i] = results.get(i);
-		}
-		
-		/*
-		 * KEGGHPRD_result_stroma_ligand
-		 */		
-		for (Interaction interaction : biodb.interactions) {
-			// enumerate all receptor expressions
-			double sum_of_receptor_expression_cancer = 0;
-			double sum_of_receptor_expression_stroma = 0;
-			for (Interaction _inter : biodb.interactions) {
-				if (interaction.ligand_symbol.equals(_inter.ligand_symbol)) {
-					sum_of_receptor_expression_cancer += _inter.expression_receptor_cancer;
-					sum_of_receptor_expression_stroma += _inter.expression_receptor_stroma;
-				}
+			if (receptor_sum > 0) {
+				interaction.cancer_ligand_receptor_ratio = sum_of_receptor_expression_cancer[lg] / receptor_sum;
+				interaction.stroma_ligand_receptor_ratio = sum_of_receptor_expression_stroma[lg] / receptor_sum;
+			} else {
+				interaction.cancer_ligand_receptor_ratio = -1;
+				interaction.stroma_ligand_receptor_ratio = -1;
 			}
 			
-			// average
-			interaction.stroma_ligand_average = Math.sqrt(
-				(sum_of_receptor_expression_cancer + sum_of_receptor_expression_stroma)
-				* interaction.expression_ligand_stroma);
+			// receptor ranking (shared by the interactions of the same ligand)
+			interaction.cancer_ligand_receptor_ranking = receptor_rankings[lg];
+			interaction.stroma_ligand_receptor_ranking = receptor_rankings[lg];
 			
-			// receptor ratio
-			if (sum_of_receptor_expression_cancer + sum_of_receptor_expression_stroma > 0)
-				interaction.stroma_ligand_receptor_ratio = sum_of_receptor_expression_stroma / (sum_of_receptor_expression_cancer + sum_of_receptor_expression_stroma);
-			else
-				interaction.stroma_ligand_receptor_ratio = -1;
-			
-			// receptor ranking
-			ArrayList<InteractionResult> results = new ArrayList<Analysis.InteractionResult>();
-			HashSet<String> used = new HashSet<String>();
-			for (Interaction _inter : biodb.interactions) {
-				if (interaction.ligand_symbol.equals(_inter.ligand_symbol)) {
-					double rec_expression = 0;
-					rec_expression += _inter.expression_receptor_cancer;
-					rec_expression += _inter.expression_receptor_stroma;
-					if (!used.contains(_inter.receptor_symbol)) {
-						results.add(new InteractionResult(_inter.receptor_symbol, rec_expression));
-						used.add(_inter.receptor_symbol);
-					}
-				}
-			}
-			Collections.sort(results);
-			Collections.reverse(results);
-			interaction.stroma_ligand_receptor_ranking = new InteractionResult[results.size()];
-			for (int i=0; i<results.size(); i++)
-				interaction.stroma_ligand_receptor_ranking[i] = results.get(i);
-		}
-
-		/*
-		 * KEGGHPRD_result_stroma_receptor
-		 */		
-		for (Interaction interaction : biodb.interactions) {
-			// enumerate all receptor expressions
-			double sum_of_ligand_expression_cancer = 0;
-			double sum_of_ligand_expression_stroma = 0;
-			for (Interaction _inter : biodb.interactions) {
-				if (interaction.receptor_symbol.equals(_inter.receptor_symbol)) {
-					sum_of_ligand_expression_cancer += _inter.expression_ligand_cancer;
-					sum_of_ligand_expression_stroma += _inter.expression_ligand_stroma;
-				}
-			}
+			/*
+			 * KEGGHPRD_result_cancer_receptor / KEGGHPRD_result_stroma_receptor
+			 */
+			double ligand_sum = sum_of_ligand_expression_cancer[rg] + sum_of_ligand_expression_stroma[rg];
 			
 			// average
-			interaction.stroma_receptor_average = Math.sqrt(
-				(sum_of_ligand_expression_cancer + sum_of_ligand_expression_stroma)
-				* interaction.expression_receptor_stroma);
+			interaction.cancer_receptor_average = Math.sqrt(ligand_sum * interaction.expression_receptor_cancer);
+			interaction.stroma_receptor_average = Math.sqrt(ligand_sum * interaction.expression_receptor_stroma);
 			
-			// receptor ratio
-			if (sum_of_ligand_expression_cancer + sum_of_ligand_expression_stroma > 0)
-				interaction.stroma_receptor_ligand_ratio = sum_of_ligand_expression_stroma / (sum_of_ligand_expression_cancer + sum_of_ligand_expression_stroma);
-			else
+			// ligand ratio
+			if (ligand_sum > 0) {
+				interaction.cancer_receptor_ligand_ratio = sum_of_ligand_expression_cancer[rg] / ligand_sum;
+				interaction.stroma_receptor_ligand_ratio = sum_of_ligand_expression_stroma[rg] / ligand_sum;
+			} else {
+				interaction.cancer_receptor_ligand_ratio = -1;
 				interaction.stroma_receptor_ligand_ratio = -1;
-			
-			// ligand ranking
-			ArrayList<InteractionResult> results = new ArrayList<Analysis.InteractionResult>();
-			HashSet<String> used = new HashSet<String>(); 
-			for (Interaction _inter : biodb.interactions) {
-				if (interaction.receptor_symbol.equals(_inter.receptor_symbol)) {
-					double lig_expression = 0;
-					lig_expression += _inter.expression_ligand_cancer;
-					lig_expression += _inter.expression_ligand_stroma;
-					if (!used.contains(_inter.ligand_symbol)) {
-						results.add(new InteractionResult(_inter.ligand_symbol, lig_expression));
-						used.add(_inter.ligand_symbol);
-					}
-				}
 			}
-			Collections.sort(results);
-			Collections.reverse(results);
-			interaction.stroma_receptor_ligand_ranking = new InteractionResult[results.size()];
-			for (int i=0; i<results.size(); i++)
-				interaction.stroma_receptor_ligand_ranking[i] = results.get(i);
+			
+			// ligand ranking (shared by the interactions of the same receptor)
+			interaction.cancer_receptor_ligand_ranking = ligand_rankings[rg];
+			interaction.stroma_receptor_ligand_ranking = ligand_rankings[rg];
 		}
 		
 		Logger.logf("analyzing interaction done.");
 	}
 
+	/*
+	 * ranking of the partners (receptors if by_receptor, otherwise ligands) of a group of interactions
+	 * by their summed cancer and stroma expression, in descending order. each partner symbol appears once.
+	 */
+	private InteractionResult[] rankPartners(Interaction[] members, boolean by_receptor) {
+		ArrayList<InteractionResult> results = new ArrayList<Analysis.InteractionResult>();
+		HashSet<String> used = new HashSet<String>();
+		for (Interaction _inter : members) {
+			String symbol = by_receptor ? _inter.receptor_symbol : _inter.ligand_symbol;
+			double expression = 0;
+			if (by_receptor) {
+				expression += _inter.expression_receptor_cancer;
+				expression += _inter.expression_receptor_stroma;
+			} else {
+				expression += _inter.expression_ligand_cancer;
+				expression += _inter.expression_ligand_stroma;
+			}
+			if (!used.contains(symbol)) {
+				results.add(new InteractionResult(symbol, expression));
+				used.add(symbol);
+			}
+		}
+		Collections.sort(results);
+		Collections.reverse(results);
+		return results.toArray(new InteractionResult[]{});
+	}
+	
 	public class InteractionResult implements Comparable<InteractionResult> {
 		public String symbol;
 		public double expression;
@@ -2,15 +2,14 @@ package interactome.analysis;
 
 
 import interactome.Logger;
+import interactome.Option;
 import interactome.data.BioDB;
 import interactome.data.Refseq;
 import interactome.input.Input;
 import interactome.input.RefseqInput;
 
-import org.rosuda.JRI.*;
-
 public class BiasCorrector {
-	static BiasCorrector _instance;
+	static final InheritableThreadLocal<BiasCorrector> _instance = new InheritableThreadLocal<BiasCorrector>(); // per sample (see Batch)
 	
 	Input input;
 	DynamicParameters dynamicParameters;
@@ -23,21 +22,43 @@ public class BiasCorrector {
 	double alpha = 0;
 	double beta = 0;
 	
+	RefseqPool pool; // per-refseq passes (closed by close())
+	
+	// heat map histograms of residues (residue_store=histogram), for all refseqs and for the parameter refseqs
+	ResidueHistograms histograms_all = null;
+	ResidueHistograms histograms_estim = null;
+	
 	public static BiasCorrector getInstance() {
-		return _instance;
+		return _instance.get();
 	}
 	
 	public static BiasCorrector createInstance(Input input, DynamicParameters dp) {
-		_instance = new BiasCorrector(input, dp);
-		return _instance;
+		_instance.set(new BiasCorrector(input, dp));
+		return _instance.get();
 	}
 
 	private BiasCorrector(Input input, DynamicParameters dp) {
 		this.input = input;
 		this.dynamicParameters = dp;
+		this.pool = new RefseqPool(Option.getInstance().threads);
+	}
+	
+	/*
+	 * create the glm solver specified by bias_solver (java or R).
+	 * the R solver is loaded by name, because it is not compiled without lib/JRI.jar.
+	 */
+	GLMSolver createSolver() throws Exception {
+		Option option = Option.getInstance();
+		String solver = option.settings.get("bias_solver");
+		if (solver.equals("java")) {
+			return new PoissonGLM(option.threads);
+		} else if (solver.equals("R")) {
+			return (GLMSolver)Class.forName("interactome.analysis.RGLMSolver").getDeclaredConstructor().newInstance();
+		}
+		throw new IllegalArgumentException("unknown bias_solver: " + solver);
 	}
 	
-	public void correctBias() {
+	public boolean correctBias() {
 		BioDB biodb = BioDB.getInstance();
 		
 		Logger.logf("\ncorrecting bias.");
@@ -56,19 +77,19 @@ public class BiasCorrector {
 		// initialize
 		for (int i=0; i<n; i++) {
 			refseqs[i] = this.dynamicParameters.parameterRefseqs[i];
-			inputs[i] = this.input.refseq_inputs.get(refseqs[i].refseq_id);
+			inputs[i] = this.input.refseq_inputs[refseqs[i].ordinal];
 			
 			for (int j=0; j<Math.min(max_frompolya, refseqs[i].length); j++) {
-				mappability_sums[i] += refseqs[i].mappability[j];
-				if (refseqs[i].mappability[j] > 0) {
+				mappability_sums[i] += inputs[i].mappability[j];
+				if (inputs[i].mappability[j] > 0) {
 					mappable_position_counts[i]++;
 					total_mappable_position_count++;
 				}
 			}
 			for (int j=0; j<Math.min(max_frompolya, refseqs[i].length); j++) {
-				if (refseqs[i].mappability[j] > 0) {
-					sums[i] += mappability_sums[i] / (mappable_position_counts[i] * refseqs[i].mappability[j]) * inputs[i].overlap_counts[j];
-				} else if (inputs[i].overlap_counts[j] > 0) {
+				if (inputs[i].mappability[j] > 0) {
+					sums[i] += mappability_sums[i] / (mappable_position_counts[i] * inputs[i].mappability[j]) * inputs[i].overlap_counts.get(j);
+				} else if (inputs[i].overlap_counts.get(j) > 0) {
 					Logger.errorf("unmappable position was overlapped by a read: %s %d", refseqs[i].refseq_id, j);
 				}
 			}
@@ -76,47 +97,90 @@ public class BiasCorrector {
 			v[i] = sums[i] / mappable_position_counts[i];
 		}
 		
-		Rengine engine = new Rengine(new String[]{"--no-save"}, false, null);
-		REXP result;
+		// group the design rows into cells of equal covariates, unless bias_design=rows
+		DesignCells cells = null;
+		if (Option.getInstance().settings.get("bias_design").equals("cells")) {
+			cells = new DesignCells(total_mappable_position_count);
+			for (int i=0; i<n; i++) {
+				for (int j=0; j<Math.min(max_frompolya, refseqs[i].length); j++) {
+					if (inputs[i].mappability[j] > 0) {
+						cells.addRow((int)inputs[i].overlap_counts.get(j), refseqs[i].gc_percent[j], refseqs[i].length - j);
+					}
+				}
+			}
+			cells.finish();
+			Logger.logf("%d design rows in %d cells.", total_mappable_position_count, cells.cell_count);
+		}
+		
+		GLMSolver solver;
+		try {
+			solver = this.createSolver();
+		} catch (Throwable e) {
+			e.printStackTrace();
+			Logger.errorf("failed to start the glm solver (%s).", Option.getInstance().settings.get("bias_solver"));
+			return false;
+		}
+		int max_parameter_length = 0;
+		for (int i=0; i<n; i++) max_parameter_length = Math.max(max_parameter_length, refseqs[i].length);
 		
 		// iteration
 		for (int x=0; x<iteration_count_max; x++) {
 			Logger.logf("iteration %d.", x+1);
 			
 			// solve alpha, beta by maximum-likelihood
-			int[] X1 = new int[total_mappable_position_count];
-			double[] X2 = new double[total_mappable_position_count];
-			double[] X3 = new double[total_mappable_position_count];
-			double[] offset = new double[total_mappable_position_count];
+			int[] X1;
+			double[] X2;
+			double[] X3;
+			double[] offset;
 			
-			// arrange data for R
-			int count = 0;
-			for (int i=0; i<n; i++) {
-				for (int j=0; j<Math.min(max_frompolya, refseqs[i].length); j++) {
-					if (refseqs[i].mappability[j] > 0) {
-						X1[count] = (int)inputs[i].overlap_counts[j];
-						X2[count] = ((double)refseqs[i].gc_percent[j]);
-						X3[count] = ((double)refseqs[i].length - j);
-						offset[count] = Math.log(v[i] * mappable_position_counts[i] * refseqs[i].mappability[j] / mappability_sums[i]);
-						count++;
+			// arrange data for the solver
+			if (cells != null) {
+				cells.clearOffsets();
+				for (int i=0; i<n; i++) {
+					for (int j=0; j<Math.min(max_frompolya, refseqs[i].length); j++) {
+						if (inputs[i].mappability[j] > 0) {
+							cells.addRowOffset(v[i] * mappable_position_counts[i] * inputs[i].mappability[j] / mappability_sums[i]);
+						}
+					}
+				}
+				X1 = cells.y;
+				X2 = cells.x2;
+				X3 = cells.x3;
+				offset = cells.offsets();
+			} else {
+				X1 = new int[total_mappable_position_count];
+				X2 = new double[total_mappable_position_count];
+				X3 = new double[total_mappable_position_count];
+				offset = new double[total_mappable_position_count];
+				int count = 0;
+				for (int i=0; i<n; i++) {
+					for (int j=0; j<Math.min(max_frompolya, refseqs[i].length); j++) {
+						if (inputs[i].mappability[j] > 0) {
+							X1[count] = (int)inputs[i].overlap_counts.get(j);
+							X2[count] = ((double)refseqs[i].gc_percent[j]);
+							X3[count] = ((double)refseqs[i].length - j);
+							offset[count] = Math.log(v[i] * mappable_position_counts[i] * inputs[i].mappability[j] / mappability_sums[i]);
+							count++;
+						}
 					}
 				}
 			}
 			
-			// execute R
-			engine.assign("x1",X1);
-			engine.assign("x2",X2);
-			engine.assign("x3",X3);
-			engine.assign("cs",offset);
-			engine.eval("glmres<-glm(x1~x2+x3-1, family=poisson, offset=cs)");
+			// solve glm
+			double[] coefficients;
+			try {
+				coefficients = solver.fit(X1, X2, X3, offset);
+			} catch (Exception e) {
+				e.printStackTrace();
+				solver.close();
+				return false;
+			}
 			
 			double old_alpha = alpha;
 			double old_beta = beta;
 			
-			result = engine.eval("glmres$coefficients[1]");
-			alpha = result.asDouble();
-			result = engine.eval("glmres$coefficients[2]");
-			beta = result.asDouble();
+			alpha = coefficients[0];
+			beta = coefficients[1];
 			Logger.logf("alpha: %.10f\nbeta: %.10f", alpha, beta);
 			
 			// change ratio
@@ -131,96 +195,142 @@ public class BiasCorrector {
 					Math.sqrt(Math.pow(alpha-old_alpha, 2)+Math.pow(beta-old_beta, 2)) / Math.sqrt(alpha*alpha + beta*beta));
 			
 			// update v
+			BiasWeights bias_weights = new BiasWeights(alpha, beta, max_parameter_length);
+			bias_weights.weights(pool, refseqs, this.input.refseq_inputs, max_frompolya, weight);
 			for (int i=0; i<n; i++) {
-				weight[i] = 0;
-				for (int j=0; j<Math.min(max_frompolya, refseqs[i].length); j++) {
-					if (refseqs[i].mappability[j] > 0) {
-						weight[i] += Math.exp(alpha * refseqs[i].gc_percent[j] + beta * (refseqs[i].length - j));
-					}
-				}
 				v[i] = sums[i] / weight[i];
 			}
 			
 			if (abort) break;
 		}
-		engine.end();
+		solver.close();
+		
+		// weights of all refseqs
+		int max_length = 0;
+		for (Refseq refseq : biodb.all_refseqs) max_length = Math.max(max_length, refseq.length);
+		final double[] weights = new double[biodb.all_refseqs.length];
+		new BiasWeights(alpha, beta, max_length).weights(pool, biodb.all_refseqs, this.input.refseq_inputs, Integer.MAX_VALUE, weights);
 		
 		// correction for all refseqs
-		for (String refseq_id : biodb.all_refseq_ids) {
-			double sum = 0; 			// for bias correction
-			double sum_for_v = 0; 		// for calculating regression residues
-			
-			Refseq refseq = biodb.refseq_db.get(refseq_id);
-			RefseqInput refinput = input.refseq_inputs.get(refseq_id);
-			
-			if (refseq != null && !refseq.is_invalid) {
-				double w = 0;
-				for (int j=0; j<refseq.length; j++) {
-					if (refseq.mappability[j] > 0) {
-						w += Math.exp(alpha * refseq.gc_percent[j] + beta * (refseq.length - j));
-					}
-				}
-				
-				for (int j=0; j<refseq.length; j++) {
-					refseq.mappability_sum += refseq.mappability[j];
-					if (refseq.mappability[j] > 0) {
-						refseq.mappable_position_count++;
-					}
-				}
-				
-				for (int j=0; j<refseq.length; j++) {
-					if (refseq.mappability[j] > 0) {
-						sum += refinput.starting_counts[j];
-						sum_for_v += refinput.overlap_counts[j] * refseq.mappability_sum / (refseq.mappable_position_count * refseq.mappability[j]);
-					}
-				}
-				
-				refinput.true_expression = sum / w;
-				refinput.v_init = sum_for_v / refseq.mappable_position_count;
-				refinput.v_end = sum_for_v / w;
-				
-				if (w == 0) {
-					refinput.true_expression = 0;
-					refinput.v_end = 0;
+		pool.forEach(biodb.all_refseqs, new RefseqPool.Action() {
+			public void run(int index, Refseq refseq) {
+				correct(refseq, weights[index]);
+			}
+		});
+		Logger.logf("bias correction done.");
+		
+		return true;
+	}
+	
+	// correction of a refseq by its bias weight w (modifies only the refseq and its input)
+	void correct(Refseq refseq, double w) {
+		double sum = 0; 			// for bias correction
+		double sum_for_v = 0; 		// for calculating regression residues
+		
+		RefseqInput refinput = input.refseq_inputs[refseq.ordinal];
+		
+		if (!refseq.is_invalid) {
+			for (int j=0; j<refseq.length; j++) {
+				refinput.mappability_sum += refinput.mappability[j];
+				if (refinput.mappability[j] > 0) {
+					refinput.mappable_position_count++;
 				}
-				if (refseq.mappable_position_count == 0) {
-					refinput.v_init = 0;
+			}
+			
+			for (int j=0; j<refseq.length; j++) {
+				if (refinput.mappability[j] > 0) {
+					sum += refinput.starting_counts.get(j);
+					sum_for_v += refinput.overlap_counts.get(j) * refinput.mappability_sum / (refinput.mappable_position_count * refinput.mappability[j]);
 				}
 			}
+			
+			refinput.true_expression = sum / w;
+			refinput.v_init = sum_for_v / refinput.mappable_position_count;
+			refinput.v_end = sum_for_v / w;
+			
+			if (w == 0) {
+				refinput.true_expression = 0;
+				refinput.v_end = 0;
+			}
+			if (refinput.mappable_position_count == 0) {
+				refinput.v_init = 0;
+			}
 		}
-		Logger.logf("bias correction done.");
-		
-		return;
 	}
 	
+	// end the workers of the per-refseq passes
+	public void close() {
+		this.pool.close();
+	}
+	
+	/*
+	 * regression residues of every position (see ResultsWriter.drawPolyAHeatMap).
+	 * with residue_store=histogram, residues are counted into the heat map histograms of all refseqs and
+	 * of the parameter refseqs, instead of being kept in residue_init / residue_end.
+	 */
 	public void calculateRegressionResidues() {
 		BioDB biodb = BioDB.getInstance();
 		
-		for (String refseq_id : biodb.all_refseq_ids) {
-			Refseq refseq = biodb.refseq_db.get(refseq_id);
-			RefseqInput rinput = input.refseq_inputs.get(refseq_id);
-			if (refseq == null || rinput == null) continue;
-			
+		if (Option.getInstance().settings.get("residue_store").equals("histogram")) {
+			this.histograms_all = ResidueHistograms.concurrent();
+			this.histograms_estim = ResidueHistograms.concurrent();
+		}
+		final boolean[] estim = new boolean[biodb.all_refseqs.length];
+		for (Refseq refseq : this.dynamicParameters.parameterRefseqs) estim[refseq.ordinal] = true;
+		
+		pool.forEach(biodb.all_refseqs, new RefseqPool.Action() {
+			public void run(int index, Refseq refseq) {
+				calculateRegressionResidues(refseq, estim[index]);
+			}
+		});
+		
+		if (this.histograms_all != null) {
+			this.histograms_all.merge();
+			this.histograms_estim.merge();
+		}
+	}
+	
+	void calculateRegressionResidues(Refseq refseq, boolean estim) {
+		RefseqInput rinput = input.refseq_inputs[refseq.ordinal];
+		if (rinput == null) return;
+		if (rinput.overlap_counts.isEmpty()) return; // no residue without reads
+		
+		ResidueHistograms histograms_all = null;
+		ResidueHistograms histograms_estim = null;
+		if (this.histograms_all != null) {
+			histograms_all = this.histograms_all.local();
+			if (estim) histograms_estim = this.histograms_estim.local();
+		} else {
 			rinput.residue_init = new float[refseq.length];
 			rinput.residue_end = new float[refseq.length];
-			for (int i=0; i<refseq.length; i++) {
-				if (refseq.mappability[i] == 0 || rinput.overlap_counts[i] == 0) {
+		}
+		for (int i=0; i<refseq.length; i++) {
+			if (rinput.mappability[i] == 0 || rinput.overlap_counts.get(i) == 0) {
+				if (histograms_all == null) {
 					rinput.residue_init[i] = Float.NaN;
 					rinput.residue_end[i] = Float.NaN;
-					continue;
 				}
-				
-				// init
-				rinput.residue_init[i] = (float)(
-					Math.log(rinput.overlap_counts[i])
-					- Math.log(rinput.v_init * refseq.mappable_position_count * refseq.mappability[i] / refseq.mappability_sum));
-				
-				// end
-				rinput.residue_end[i] = (float)(
-					Math.log(rinput.overlap_counts[i])
-					- Math.log(rinput.v_end * refseq.mappable_position_count * refseq.mappability[i] / refseq.mappability_sum)
-					- alpha * refseq.gc_percent[i]
-					- beta * (refseq.length - i));
+				continue;
+			}
+			
+			// init
+			float residue_init = (float)(
+				Math.log(rinput.overlap_counts.get(i))
+				- Math.log(rinput.v_init * rinput.mappable_position_count * rinput.mappability[i] / rinput.mappability_sum));
+			
+			// end
+			float residue_end = (float)(
+				Math.log(rinput.overlap_counts.get(i))
+				- Math.log(rinput.v_end * rinput.mappable_position_count * rinput.mappability[i] / rinput.mappability_sum)
+				- alpha * refseq.gc_percent[i]
+				- beta * (refseq.length - i));
+			
+			if (histograms_all == null) {
+				rinput.residue_init[i] = residue_init;
+				rinput.residue_end[i] = residue_end;
+			} else {
+				histograms_all.add(refseq.gc_percent[i], refseq.length - i, residue_init, residue_end);
+				if (histograms_estim != null) histograms_estim.add(refseq.gc_percent[i], refseq.length - i, residue_init, residue_end);
 			}
 		}
 	}
@@ -0,0 +1,78 @@
+package interactome.analysis;
+
+import interactome.data.Refseq;
+import interactome.input.RefseqInput;
+
+/*
+ * bias weights of refseqs: sum of exp(alpha * gc + beta * distance) over the mappable positions,
+ * where distance = length - position (distance from poly-A).
+ * gc (0-100) and distance are integers, so exp() is factorized into exp(alpha * gc) * exp(beta * distance)
+ * read from tables built once per (alpha, beta). if a factor of the tables under/overflows, exp() is called directly.
+ * weights of a set of refseqs are computed on a RefseqPool; each refseq is summed in position order
+ * by a single task, so results do not depend on the number of threads.
+ */
+class BiasWeights {
+	static final int MAX_GC = 100;
+	
+	final double alpha;
+	final double beta;
+	final double[] gc_factors;
+	final double[] distance_factors;
+	final boolean factorized;
+	
+	BiasWeights(double alpha, double beta, int max_distance) {
+		this.alpha = alpha;
+		this.beta = beta;
+		this.gc_factors = new double[MAX_GC + 1];
+		this.distance_factors = new double[max_distance + 1];
+		
+		boolean finite = true;
+		for (int gc=0; gc<=MAX_GC; gc++) {
+			this.gc_factors[gc] = Math.exp(alpha * gc);
+			finite &= isNormal(this.gc_factors[gc]);
+		}
+		for (int d=0; d<=max_distance; d++) {
+			this.distance_factors[d] = Math.exp(beta * d);
+			finite &= isNormal(this.distance_factors[d]);
+		}
+		this.factorized = finite;
+	}
+	
+	// weight of the mappable positions [0, min(limit, length)) of a refseq
+	double weight(RefseqInput rinput, int limit) {
+		Refseq refseq = rinput.refseq;
+		int end = Math.min(limit, refseq.length);
+		double w = 0;
+		if (this.factorized) {
+			for (int j=0; j<end; j++) {
+				if (rinput.mappability[j] > 0) {
+					w += this.gc_factors[refseq.gc_percent[j]] * this.distance_factors[refseq.length - j];
+				}
+			}
+		} else {
+			for (int j=0; j<end; j++) {
+				if (rinput.mappability[j] > 0) {
+					w += Math.exp(this.alpha * refseq.gc_percent[j] + this.beta * (refseq.length - j));
+				}
+			}
+		}
+		return w;
+	}
+	
+	/*
+	 * weights of refseqs (limited to the first limit positions) into weights[i],
+	 * by the mappabilities of inputs (indexed by Refseq.ordinal). null or invalid refseqs are skipped.
+	 */
+	void weights(RefseqPool pool, Refseq[] refseqs, final RefseqInput[] inputs, final int limit, final double[] weights) {
+		pool.forEach(refseqs, new RefseqPool.Action() {
+			public void run(int index, Refseq refseq) {
+				if (refseq.is_invalid) return;
+				weights[index] = weight(inputs[refseq.ordinal], limit);
+			}
+		});
+	}
+	
+	private static boolean isNormal(double value) {
+		return value >= Double.MIN_NORMAL && value <= Double.MAX_VALUE;
+	}
+}
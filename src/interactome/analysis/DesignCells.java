@@ -0,0 +1,95 @@
+package interactome.analysis;
+
+import java.util.Arrays;
+
+/*
+ * rows of the bias design grouped into cells of equal covariates (gc percent, distance).
+ * the poisson likelihood of y ~ x2 + x3 - 1 with offset depends on the rows of a cell only
+ * through sum(y) and sum(exp(offset)), so the glm on the cells gives the coefficients of the glm on the rows.
+ * rows are added once in a fixed order (then finish()); their exp(offset) is added in the same order at each iteration.
+ * cells are numbered in the order of their first row.
+ */
+class DesignCells {
+	static final int INITIAL_CAPACITY = 1024;
+	
+	int cell_count = 0;
+	int[] y = new int[INITIAL_CAPACITY];
+	double[] x2 = new double[INITIAL_CAPACITY];
+	double[] x3 = new double[INITIAL_CAPACITY];
+	
+	// cell of each row
+	int[] cell_of_row;
+	int row_count = 0;
+	
+	// sum of exp(offset) of each cell
+	double[] exp_offset_sums;
+	int offset_row = 0;
+	
+	// open addressing table of (gc, distance) -> cell
+	long[] keys;
+	int[] slot_cells;
+	int mask;
+	
+	DesignCells(int row_count) {
+		this.cell_of_row = new int[row_count];
+		int size = 16;
+		while (size < row_count * 2) size <<= 1;
+		this.keys = new long[size];
+		this.slot_cells = new int[size];
+		Arrays.fill(this.slot_cells, -1);
+		this.mask = size - 1;
+	}
+	
+	void addRow(int count, int gc, int distance) {
+		long key = (long)gc << 32 | (distance & 0xffffffffL);
+		int slot = hash(key) & this.mask;
+		while (this.slot_cells[slot] >= 0 && this.keys[slot] != key) slot = (slot + 1) & this.mask;
+		
+		int cell = this.slot_cells[slot];
+		if (cell < 0) {
+			cell = this.cell_count++;
+			if (cell == this.y.length) {
+				this.y = Arrays.copyOf(this.y, cell * 2);
+				this.x2 = Arrays.copyOf(this.x2, cell * 2);
+				this.x3 = Arrays.copyOf(this.x3, cell * 2);
+			}
+			this.keys[slot] = key;
+			this.slot_cells[slot] = cell;
+			this.x2[cell] = gc;
+			this.x3[cell] = distance;
+		}
+		this.y[cell] = Math.addExact(this.y[cell], count);
+		this.cell_of_row[this.row_count++] = cell;
+	}
+	
+	// called after the last row is added
+	void finish() {
+		this.y = Arrays.copyOf(this.y, this.cell_count);
+		this.x2 = Arrays.copyOf(this.x2, this.cell_count);
+		this.x3 = Arrays.copyOf(this.x3, this.cell_count);
+		this.exp_offset_sums = new double[this.cell_count];
+		this.keys = null;
+		this.slot_cells = null;
+	}
+	
+	void clearOffsets() {
+		Arrays.fill(this.exp_offset_sums, 0);
+		this.offset_row = 0;
+	}
+	
+	// exp(offset) of the next row
+	void addRowOffset(double exp_offset) {
+		this.exp_offset_sums[this.cell_of_row[this.offset_row++]] += exp_offset;
+	}
+	
+	double[] offsets() {
+		double[] offset = new double[this.cell_count];
+		for (int c=0; c<this.cell_count; c++) offset[c] = Math.log(this.exp_offset_sums[c]);
+		return offset;
+	}
+	
+	private static int hash(long key) {
+		key *= 0x9e3779b97f4a7c15L;
+		return (int)(key ^ (key >>> 32));
+	}
+}
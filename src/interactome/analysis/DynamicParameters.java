@@ -1,7 +1,5 @@
 package interactome.analysis;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -9,37 +7,38 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import interactome.Logger;
 import interactome.Option;
-import interactome.Pair;
 import interactome.data.BioDB;
 import interactome.data.Refseq;
 import interactome.input.Input;
+import interactome.input.RefseqInput;
 
 public class DynamicParameters {
-	static DynamicParameters _instance;
+	static final InheritableThreadLocal<DynamicParameters> _instance = new InheritableThreadLocal<DynamicParameters>(); // per sample (see Batch)
 	
 	// constants
 	final double minimum_coverage = 0.8;
 	final int minimum_coverage_depth = 1;
-	final int maximum_parameters_genes = 200;
+	int maximum_parameters_genes = 200;
 	int minimum_length = 8000;
 	
-	final int mappability_min_match_length = 50;
-	final int mappability_max_match_length = 400;
+	static final int mappability_min_match_length = 50;
+	int mappability_max_match_length = 400;
 	
 	// instance fields
 	Input input;
 	Refseq[] parameterRefseqs;
 	
 	public static DynamicParameters getInstance() {
-		return _instance;
+		return _instance.get();
 	}
 	
 	public static DynamicParameters createInstance(Input input) {
-		_instance = new DynamicParameters(input);
-		return _instance;
+		_instance.set(new DynamicParameters(input));
+		return _instance.get();
 	}
 	
 	private DynamicParameters(Input input) {
@@ -50,6 +49,18 @@ public class DynamicParameters {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		try {
+			int tmp = Integer.valueOf(Option.getInstance().settings.get("parameter_gene_maximum_count"));
+			maximum_parameters_genes = tmp;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		try {
+			int tmp = Integer.valueOf(Option.getInstance().settings.get("mappability_max_match_length"));
+			mappability_max_match_length = Math.max(mappability_min_match_length, Math.min(tmp, input.match_length_distribution.length-1));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 	}
 	
 	public void selectParameterRefseqs() {
@@ -70,17 +81,18 @@ public class DynamicParameters {
 		// accept refseq with adequate coverage and length
 		for (Iterator<Refseq> i = candidate_refseqs.iterator(); i.hasNext(); ) {
 			Refseq refseq = i.next();
-			if (this.input.refseq_inputs.get(refseq.refseq_id).coverage(minimum_coverage_depth) < minimum_coverage ||
+			if (this.input.refseq_inputs[refseq.ordinal].coverage(minimum_coverage_depth) < minimum_coverage ||
 				refseq.length < minimum_length) {
 				i.remove();
 			}
 		}
 		
-		// sort by length
+		// sort by length (refseqs of the same length in refNames order, as the set has no order)
 		ArrayList<Refseq> candidate_array = new ArrayList<Refseq>(candidate_refseqs);
 		Collections.sort(candidate_array, new Comparator<Refseq>() {
 			public int compare(Refseq a, Refseq b) {
-				return b.length - a.length;
+				if (a.length != b.length) return b.length - a.length;
+				return a.ordinal - b.ordinal;
 			}
 		});
 		
@@ -94,37 +106,19 @@ public class DynamicParameters {
 		return;
 	}
 	
+	// bytes of the working buffers of calculateWeightedMappability (for the memory estimate of a batch sample)
+	public static long weightedMappabilityBufferBytes(int max_match_length) {
+		return MappabilityWeights.bytes(mappability_min_match_length, Math.max(mappability_min_match_length, max_match_length));
+	}
+	
 	public boolean calculateWeightedMappability() {
 		Option option = Option.getInstance();
 		BioDB biodb = BioDB.getInstance();
 		
 		Logger.logf("\ncalculating weighted mappabilities.");
 		
-		// load self-matching table
-		try {
-			FileReader fr = new FileReader(
-				option.directional_mode == 0 ? option.settings.get("self_matching") : option.settings.get("self_matching_direct")
-						);
-			BufferedReader br = new BufferedReader(fr);
-			
-			String l;
-			Refseq refseq = null;
-			while ((l = br.readLine()) != null) {
-				if (l.charAt(0) == '>') {
-					refseq = biodb.refseq_db.get(l.substring(1));
-				} else {
-					String[] row = l.split("\t");
-					// self-matching entry is given by 0-order
-					if (refseq != null) {
-						refseq.unmappable_regions.add(new Pair<Integer, Integer>(Integer.valueOf(row[1]), Integer.valueOf(row[2])));
-					}
-				}
-			}
-			
-			br.close();
-			fr.close();
-		} catch (Exception e) {
-			e.printStackTrace();
+		// load self-matching table (once per table, see BioDB)
+		if (!biodb.loadSelfMatching(option.directional_mode)) {
 			return false;
 		}
 		
@@ -141,70 +135,93 @@ public class DynamicParameters {
 //			Logger.logf("%f", ratios[i]);
 		}
 		
-		// construct weight-buffer
-		double[][][] weight_buffer = new double[mappability_max_match_length+1][mappability_max_match_length+1][mappability_max_match_length];
-		for (int mappable_min=mappability_min_match_length; mappable_min<=mappability_max_match_length; mappable_min++) {
-			for (int mappable_max=mappable_min; mappable_max<=mappability_max_match_length; mappable_max++) {
-				for (int match_length=mappable_min; match_length<=mappable_max; match_length++) {
-					for (int pos=0; pos<match_length; pos++) {
-						weight_buffer[mappable_min][mappable_max][pos] += ratios[match_length];
-					}
-				}
-			}
+		// reuse the mappabilities of a run with the same (or a near) distribution, if cached
+		// (the self-matching table is loaded anyway, as unmappable regions are used by ResultsWriter)
+		MappabilityCache cache = MappabilityCache.open(option.directional_mode, mappability_min_match_length, mappability_max_match_length, ratios);
+		if (cache != null && cache.read(this.input)) {
+			Logger.logf("\ndone.");
+			return true;
 		}
 		
-		int n = 0;
-		for (String refseq_id : biodb.all_refseq_ids) {
-			if ((n++) % 10000 == 0) {
-				Logger.logf("%d", n-1);
-			}
-			
-			Refseq refseq = biodb.refseq_db.get(refseq_id);
-			refseq.mappability = new float[refseq.length];
-			for (int i=0; i<refseq.length; i++) refseq.mappability[i] = 0;
-			
-			// for each start position of a matching
-			for (int p=0; p<refseq.length; p++) {
-				// check the minimum- and maximum- unique matching length
-				int min_mappable = mappability_min_match_length;
-				for (Pair<Integer, Integer> region : refseq.unmappable_regions) {
-					if (region.first <= p) {
-						min_mappable = Math.max(region.second - p + 2, min_mappable);
+		// construct weight-buffer
+		final MappabilityWeights weights = new MappabilityWeights(ratios, mappability_min_match_length, mappability_max_match_length);
+		
+		// per refseq, in parallel (each refseq writes only its own mappability)
+		final int directional_mode = option.directional_mode;
+		final AtomicInteger n = new AtomicInteger();
+		RefseqPool pool = new RefseqPool(option.threads);
+		try {
+			pool.forEach(biodb.all_refseqs, new RefseqPool.Action() {
+				public void run(int index, Refseq refseq) {
+					int count = n.getAndIncrement();
+					if (count % 10000 == 0) {
+						Logger.logf("%d", count);
 					}
+					
+					RefseqInput rinput = input.refseq_inputs[refseq.ordinal];
+					if (rinput == null) return; // invalid refseq
+					rinput.mappability = weightedMappability(refseq, refseq.unmappableRegions(directional_mode), weights);
 				}
-				int max_mappable = Math.min(mappability_max_match_length, refseq.length-p);
-				if (min_mappable > max_mappable) continue;
-				
-				// e.g., for a read-starting position p,
-				// min_mappable = 50, max_mappable = 51,
-				// ratios = 90% @50bp, 5% @51bp, 5% for others (global distribution)
-				// mappability[p -- p+49] get (0.9 + 0.05) from p
-				// mappability[p+50] get (0 + 0.05) from p
-				
-				// O(N) using weight-buffer
-				for (int l=0; l<max_mappable; l++) {
-					refseq.mappability[p+l] += weight_buffer[min_mappable][max_mappable][l];
-				}
-			}
+			});
+		} finally {
+			pool.close();
 		}
+		if (cache != null) cache.write(this.input);
 		
 		Logger.logf("\ndone.");
 		
 		return true;
 	}
 
+	/*
+	 * weighted mappability of a refseq. for a start position p, reads shorter than min_mappable are not unique,
+	 *   min_mappable = max(second - p + 2) over unmappable regions with first <= p (at least mappability_min_match_length).
+	 * first and second of the regions increase (see Refseq.setUnmappableRegions), so that the maximum is given by
+	 * the last region with first <= p while sweeping p.
+	 */
+	float[] weightedMappability(Refseq refseq, int[] unmappable_regions, MappabilityWeights weights) {
+		float[] mappability = new float[refseq.length];
+		int r = 0; // regions before r have first <= p
+		
+		// for each start position of a matching
+		for (int p=0; p<refseq.length; p++) {
+			// check the minimum- and maximum- unique matching length
+			while (r < unmappable_regions.length && unmappable_regions[r] <= p) r += 2;
+			int min_mappable = mappability_min_match_length;
+			if (r > 0) {
+				min_mappable = Math.max(unmappable_regions[r-1] - p + 2, min_mappable);
+			}
+			int max_mappable = Math.min(mappability_max_match_length, refseq.length-p);
+			if (min_mappable > max_mappable) continue;
+			
+			// e.g., for a read-starting position p,
+			// min_mappable = 50, max_mappable = 51,
+			// ratios = 90% @50bp, 5% @51bp, 5% for others (global distribution)
+			// mappability[p -- p+49] get (0.9 + 0.05) from p
+			// mappability[p+50] get (0 + 0.05) from p
+			
+			// O(N) using weight-buffer
+			for (int l=0; l<max_mappable; l++) {
+				mappability[p+l] += weights.weight(min_mappable, max_mappable, l);
+			}
+		}
+		return mappability;
+	}
+	
 	public void checkLongUnmappableRefseqs() {
 		BioDB biodb = BioDB.getInstance();
 		
 		// check long (>=10000bp), unmappable (<50%) refseqs.
 		for (String refseq_id : biodb.all_refseq_ids) {
 			Refseq refseq = biodb.refseq_db.get(refseq_id);
+			RefseqInput rinput = this.input.refseq_inputs[refseq.ordinal];
+			if (rinput == null) continue;
 			if (refseq.length > 10000) {
 				int mappable_position_count = 0;
 				for (int i=0; i<refseq.length; i++)
-					if (refseq.mappability[i] > 0) mappable_position_count++;
+					if (rinput.mappability[i] > 0) mappable_position_count++;
 				if (mappable_position_count < refseq.length/2)
-					refseq.is_long_and_unmappable = true;
+					rinput.is_long_and_unmappable = true;
 			}
 		}
 	}
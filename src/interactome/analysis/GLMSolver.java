@@ -0,0 +1,12 @@
+package interactome.analysis;
+
+/*
+ * solver of the bias model: poisson glm  y ~ x2 + x3 - 1  (log link) with offset.
+ * the backend is selected by bias_solver in settings.properties.
+ */
+public interface GLMSolver {
+	// returns the coefficients {alpha (x2), beta (x3)}
+	double[] fit(int[] y, double[] x2, double[] x3, double[] offset) throws Exception;
+	
+	void close();
+}
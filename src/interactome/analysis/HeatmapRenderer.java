@@ -0,0 +1,120 @@
+package interactome.analysis;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.File;
+
+import org.tc33.jheatchart.HeatChart;
+
+/*
+ * png rendering of the residue heat maps (counted by ResidueHistograms).
+ * kept apart from ResultsWriter, so that AWT is not loaded when only tsv histograms are written.
+ * each call uses its own HeatChart, so heat maps can be rendered concurrently.
+ */
+public class HeatmapRenderer {
+	static {
+		// heat maps are only drawn into files; no display is needed
+		if (System.getProperty("java.awt.headless") == null) {
+			System.setProperty("java.awt.headless", "true");
+		}
+	}
+	
+	/*
+	 * draw heat maps where X-axis = poly-a dist, Y-axis = residue of regression equation for before/after correction:
+	 * log(C_i_j) = log( mappability_ratio * v_i ) + (gc %) * alpha + (poly-A) * beta + [Residue]
+	 * 	 C_i_j = count of reads overlapping position j of gene i
+	 *   mappability_ratio = refer to the original paper
+	 *   v_i = expression
+	 *
+	 * before: v = v^1_i, alpha = beta = 0
+	 * after : v = true_expression, alpha = alpha', beta = beta'
+	 */
+	static void renderPolyA(double[][] data, File file) throws Exception {
+		HeatChart heatmap = new HeatChart(data);
+		heatmap.setBackgroundColour(new Color(0, 0, 0));
+		heatmap.setHighValueColour(new Color(0, 255, 0));
+		heatmap.setLowValueColour(new Color(0, 0, 0));
+		heatmap.setAxisColour(new Color(255, 255, 255));
+		heatmap.setAxisLabelColour(new Color(255, 255, 255));
+		heatmap.setAxisValuesColour(new Color(255, 255, 255));
+		heatmap.setAxisLabelsFont(new Font("SansSerif", Font.PLAIN, 72));
+		heatmap.setAxisValuesFont(new Font("SansSerif", Font.PLAIN, 64));
+		heatmap.setColourScale(0.8);
+		heatmap.setXAxisLabel("from poly-A");
+		heatmap.setYAxisLabel("regression residue");
+		heatmap.setChartMargin(32);
+		
+		heatmap.setXValues(polyAXValues());
+		heatmap.setYValues(polyAYValues());
+		heatmap.setXAxisValuesFrequency(20);
+		heatmap.setYAxisValuesFrequency(20);
+		heatmap.setShowXAxisValues(true);
+		heatmap.setShowYAxisValues(true);
+		
+		heatmap.saveToFile(file);
+	}
+	
+	/*
+	 * draw heat maps where X-axis = gc%, Y-axis = residue of regression equation for before/after correction
+	 * (see renderPolyA).
+	 */
+	static void renderGC(double[][] data, File file) throws Exception {
+		HeatChart heatmap = new HeatChart(data);
+		heatmap.setBackgroundColour(new Color(0, 0, 0));
+		heatmap.setHighValueColour(new Color(0, 255, 0));
+		heatmap.setLowValueColour(new Color(0, 0, 0));
+		heatmap.setAxisColour(new Color(255, 255, 255));
+		heatmap.setAxisLabelColour(new Color(255, 255, 255));
+		heatmap.setAxisValuesColour(new Color(255, 255, 255));
+		heatmap.setAxisLabelsFont(new Font("SansSerif", Font.PLAIN, 36));
+		heatmap.setAxisValuesFont(new Font("SansSerif", Font.PLAIN, 32));
+		heatmap.setColourScale(0.8);
+		heatmap.setXAxisLabel("GC %");
+		heatmap.setYAxisLabel("regression residue");
+		heatmap.setChartMargin(32);
+		
+		heatmap.setXValues(gcXValues());
+		heatmap.setYValues(gcYValues());
+		heatmap.setXAxisValuesFrequency(10);
+		heatmap.setYAxisValuesFrequency(10);
+		heatmap.setShowXAxisValues(true);
+		heatmap.setShowYAxisValues(true);
+		
+		heatmap.saveToFile(file);
+	}
+	
+	// axis values of the bins
+	static Object[] polyAXValues() {
+		return xValues(ResidueHistograms.POLYA_MIN, ResidueHistograms.POLYA_MAX, ResidueHistograms.POLYA_SPLIT);
+	}
+	
+	static Object[] polyAYValues() {
+		return yValues(ResidueHistograms.POLYA_SPLIT);
+	}
+	
+	static Object[] gcXValues() {
+		return xValues(ResidueHistograms.GC_MIN, ResidueHistograms.GC_MAX, ResidueHistograms.GC_SPLIT);
+	}
+	
+	static Object[] gcYValues() {
+		return yValues(ResidueHistograms.GC_SPLIT);
+	}
+	
+	private static Object[] xValues(int min, int max, int x_split) {
+		Object[] x_values = new Object[x_split+1];
+		for (int i=0; i<=x_split; i++) {
+			x_values[i] = min + (max - min) / x_split * i;
+		}
+		return x_values;
+	}
+	
+	private static Object[] yValues(int y_split) {
+		double residue_min = ResidueHistograms.RESIDUE_MIN;
+		double residue_max = ResidueHistograms.RESIDUE_MAX;
+		Object[] y_values = new Object[y_split+1];
+		for (int i=0; i<=y_split; i++) {
+			y_values[i] = residue_max - (residue_max - residue_min) / y_split * i;
+		}
+		return y_values;
+	}
+}
@@ -0,0 +1,43 @@
+package interactome.analysis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import interactome.data.Interaction;
+
+/*
+ * interactions grouped by symbol (ligand_symbol or receptor_symbol), built once by a single hash pass.
+ * groups are numbered in the order of their first interaction, and members keep the order of the interactions,
+ * so sums over a group are taken in the same order as a scan over all interactions.
+ */
+class InteractionGroups {
+	Interaction[][] members; // members of each group
+	int[] group_of;          // group of each interaction (by index in the interaction array)
+	
+	InteractionGroups(Interaction[] interactions, boolean by_receptor) {
+		LinkedHashMap<String, Integer> groups = new LinkedHashMap<String, Integer>();
+		ArrayList<ArrayList<Interaction>> lists = new ArrayList<ArrayList<Interaction>>();
+		this.group_of = new int[interactions.length];
+		
+		for (int i=0; i<interactions.length; i++) {
+			String symbol = by_receptor ? interactions[i].receptor_symbol : interactions[i].ligand_symbol;
+			Integer group = groups.get(symbol);
+			if (group == null) {
+				group = lists.size();
+				groups.put(symbol, group);
+				lists.add(new ArrayList<Interaction>());
+			}
+			lists.get(group).add(interactions[i]);
+			this.group_of[i] = group;
+		}
+		
+		this.members = new Interaction[lists.size()][];
+		for (int g=0; g<lists.size(); g++) {
+			this.members[g] = lists.get(g).toArray(new Interaction[]{});
+		}
+	}
+	
+	int size() {
+		return this.members.length;
+	}
+}
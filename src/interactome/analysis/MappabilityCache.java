@@ -0,0 +1,288 @@
+package interactome.analysis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import interactome.Logger;
+import interactome.Option;
+import interactome.data.BioDB;
+import interactome.data.Refseq;
+import interactome.input.Input;
+import interactome.input.RefseqInput;
+
+/*
+ * on-disk cache of weighted mappabilities (mappability_cache in settings: a directory, empty: no cache).
+ * weighted mappabilities depend only on the self-matching table, the refseqs and the match-length ratios, so
+ * runs of the same protocol can reuse them.
+ *   key:         checksum of the self-matching table, table of the directional mode, match length range,
+ *                and ids and lengths of the refseqs
+ *   fingerprint: match-length ratios quantized by QUANTUM
+ * entries are files named <key>-<fingerprint>.mpc:
+ *   header: magic, version, key, match length range and ratios
+ *   body:   mappabilities of the valid refseqs in the ordinal order, as floats (read through memory-mapped windows)
+ * an entry is reused if its ratios differ from those of the sample by at most mappability_cache_tolerance
+ * (maximum absolute difference per match length; 0: the same ratios only). otherwise the closest entry within
+ * the tolerance of the same key is used, or the mappabilities are calculated and written as a new entry.
+ */
+class MappabilityCache {
+	static final byte[] MAGIC = "CASTINMC".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final long WINDOW = 1L << 30; // bytes mapped at once
+	static final double QUANTUM = 1e-6;
+	
+	// checksums of self-matching tables by path, size and modification time (shared by the samples of a batch)
+	static final HashMap<String, String> checksums = new HashMap<String, String>();
+	
+	final File directory;
+	final double tolerance;
+	final int min_match_length;
+	final int max_match_length;
+	final double[] ratios;
+	final String key;
+	final String fingerprint;
+	
+	private MappabilityCache(File directory, double tolerance, int min_match_length, int max_match_length, double[] ratios, String key) {
+		this.directory = directory;
+		this.tolerance = tolerance;
+		this.min_match_length = min_match_length;
+		this.max_match_length = max_match_length;
+		this.ratios = ratios;
+		this.key = key;
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i=min_match_length; i<=max_match_length; i++) {
+			sb.append(Math.round(ratios[i] / QUANTUM)).append('\t');
+		}
+		this.fingerprint = sha256(sb.toString()).substring(0, 16);
+	}
+	
+	/*
+	 * cache of the current sample, or null if mappability_cache is not set (or the key cannot be made).
+	 */
+	static MappabilityCache open(int directional_mode, int min_match_length, int max_match_length, double[] ratios) {
+		Option option = Option.getInstance();
+		String path = option.settings.get("mappability_cache");
+		if (path.isEmpty()) return null;
+		
+		try {
+			File directory = new File(path);
+			directory.mkdirs();
+			double tolerance = Double.valueOf(option.settings.get("mappability_cache_tolerance"));
+			
+			String table = directional_mode == 0 ? "self_matching" : "self_matching_direct";
+			StringBuilder sb = new StringBuilder();
+			sb.append(table).append('\t').append(checksum(new File(option.settings.get(table))));
+			sb.append('\t').append(min_match_length).append('\t').append(max_match_length);
+			for (Refseq refseq : BioDB.getInstance().all_refseqs) {
+				sb.append('\n').append(refseq.refseq_id).append('\t').append(refseq.length).append('\t').append(refseq.is_invalid);
+			}
+			String key = sha256(sb.toString()).substring(0, 16);
+			
+			return new MappabilityCache(directory, tolerance, min_match_length, max_match_length, ratios, key);
+		} catch (Exception e) {
+			e.printStackTrace();
+			Logger.errorf("mappability cache is not used.");
+			return null;
+		}
+	}
+	
+	// SHA-256 of the contents of a file, computed once per path, size and modification time
+	static String checksum(File file) throws Exception {
+		String id = file.getPath() + "\t" + file.length() + "\t" + file.lastModified();
+		synchronized (checksums) {
+			String checksum = checksums.get(id);
+			if (checksum != null) return checksum;
+			
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] buf = new byte[1 << 20];
+			InputStream is = new FileInputStream(file);
+			try {
+				int n;
+				while ((n = is.read(buf)) > 0) md.update(buf, 0, n);
+			} finally {
+				is.close();
+			}
+			checksum = hex(md.digest());
+			checksums.put(id, checksum);
+			return checksum;
+		}
+	}
+	
+	static String sha256(String s) {
+		try {
+			return hex(MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8)));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+	
+	/*
+	 * fill RefseqInput.mappability from the closest entry within the tolerance; returns false on a miss.
+	 */
+	boolean read(Input input) {
+		File entry = new File(this.directory, this.key + "-" + this.fingerprint + ".mpc");
+		double distance = this.distance(entry);
+		if (distance != 0 && this.tolerance > 0) {
+			// closest entry of the same key
+			File[] files = this.directory.listFiles();
+			for (int i=0; files != null && i<files.length; i++) {
+				String name = files[i].getName();
+				if (!name.startsWith(this.key + "-") || !name.endsWith(".mpc")) continue;
+				double d = this.distance(files[i]);
+				if (d < distance) {
+					distance = d;
+					entry = files[i];
+				}
+			}
+		}
+		if (!(distance <= this.tolerance)) {
+			Logger.logf("mappability cache miss (key %s, fingerprint %s).", this.key, this.fingerprint);
+			return false;
+		}
+		
+		try {
+			RandomAccessFile raf = new RandomAccessFile(entry, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long position = this.headerSize();
+				long total_length = 0;
+				for (RefseqInput rinput : input.refseq_inputs) {
+					if (rinput != null) total_length += rinput.refseq.length;
+				}
+				if (channel.size() != position + total_length * 4) {
+					throw new IOException("mappability cache entry " + entry.getPath() + " has an unexpected size");
+				}
+				long window_start = position;
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, channel.size() - position));
+				for (RefseqInput rinput : input.refseq_inputs) {
+					if (rinput == null) continue;
+					long bytes = (long)rinput.refseq.length * 4;
+					if (position + bytes > window_start + window.capacity()) {
+						window_start = position;
+						window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, channel.size() - position));
+					}
+					window.position((int)(position - window_start));
+					rinput.mappability = new float[rinput.refseq.length];
+					window.asFloatBuffer().get(rinput.mappability);
+					position += bytes;
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			Logger.errorf("failed to read mappability cache entry %s.", entry.getPath());
+			return false;
+		}
+		
+		Logger.logf("mappability cache hit: %s (distance %g).", entry.getName(), distance);
+		return true;
+	}
+	
+	// maximum absolute difference of the ratios of an entry from this sample (infinity if the entry is missing or invalid)
+	private double distance(File entry) {
+		if (!entry.exists()) return Double.POSITIVE_INFINITY;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(entry, "r");
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				raf.readFully(magic);
+				if (!Arrays.equals(magic, MAGIC) || raf.readInt() != VERSION) return Double.POSITIVE_INFINITY;
+				byte[] key = new byte[raf.readInt()];
+				raf.readFully(key);
+				if (!new String(key, StandardCharsets.US_ASCII).equals(this.key) ||
+						raf.readInt() != this.min_match_length || raf.readInt() != this.max_match_length) {
+					return Double.POSITIVE_INFINITY;
+				}
+				double distance = 0;
+				for (int i=this.min_match_length; i<=this.max_match_length; i++) {
+					double ratio = raf.readDouble();
+					if (Double.compare(ratio, this.ratios[i]) != 0) {
+						distance = Math.max(distance, Math.abs(ratio - this.ratios[i]));
+						if (Double.isNaN(distance)) return Double.POSITIVE_INFINITY;
+					}
+				}
+				return distance;
+			} finally {
+				raf.close();
+			}
+		} catch (Exception e) {
+			return Double.POSITIVE_INFINITY;
+		}
+	}
+	
+	private long headerSize() {
+		return MAGIC.length + 4 + 4 + this.key.length() + 4 + 4 + (long)(this.max_match_length - this.min_match_length + 1) * 8;
+	}
+	
+	/*
+	 * write the mappabilities of the sample as the entry of its fingerprint.
+	 * the entry is written into a temporary file and renamed, so that other runs never see a partial entry.
+	 */
+	boolean write(Input input) {
+		File entry = new File(this.directory, this.key + "-" + this.fingerprint + ".mpc");
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(entry.getName() + ".", ".tmp", this.directory);
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+				
+				// header
+				byte[] key = this.key.getBytes(StandardCharsets.US_ASCII);
+				buffer.put(MAGIC).putInt(VERSION).putInt(key.length).put(key);
+				buffer.putInt(this.min_match_length).putInt(this.max_match_length);
+				for (int i=this.min_match_length; i<=this.max_match_length; i++) {
+					if (buffer.remaining() < 8) flush(channel, buffer);
+					buffer.putDouble(this.ratios[i]);
+				}
+				
+				// mappabilities
+				for (RefseqInput rinput : input.refseq_inputs) {
+					if (rinput == null) continue;
+					for (float m : rinput.mappability) {
+						if (buffer.remaining() < 4) flush(channel, buffer);
+						buffer.putFloat(m);
+					}
+				}
+				flush(channel, buffer);
+			} finally {
+				raf.close();
+			}
+			Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (tmp != null) tmp.delete();
+			Logger.errorf("failed to write mappability cache entry %s.", entry.getPath());
+			return false;
+		}
+		
+		Logger.logf("mappability cache entry written: %s (%d MB).", entry.getName(), entry.length() >> 20);
+		return true;
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+}
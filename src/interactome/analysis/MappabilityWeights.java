@@ -0,0 +1,42 @@
+package interactome.analysis;
+
+/*
+ * weights of the weighted mappability (see DynamicParameters.calculateWeightedMappability).
+ * reads starting at a position are unique for match lengths min to max, and cover the offset pos if longer than pos:
+ *   weight(min, max, pos) = sum of ratios[l] over l in [max(min, pos+1), max]
+ * the weight depends on min and pos only through lo = max(min, pos+1), so it is read from a triangular table
+ * sums[lo][max] = ratios[lo] + ... + ratios[max] of O(L^2) doubles (instead of a table of every (min, max, pos)).
+ * each sum is accumulated in increasing match length from zero, so weights are the same as when summed per (min, max, pos).
+ */
+class MappabilityWeights {
+	final int min_match_length;
+	final int max_match_length;
+	final double[][] sums; // sums[lo - min_match_length][max - lo]
+	
+	MappabilityWeights(double[] ratios, int min_match_length, int max_match_length) {
+		this.min_match_length = min_match_length;
+		this.max_match_length = max_match_length;
+		this.sums = new double[max_match_length - min_match_length + 1][];
+		for (int lo=min_match_length; lo<=max_match_length; lo++) {
+			double[] row = this.sums[lo - min_match_length] = new double[max_match_length - lo + 1];
+			double sum = 0;
+			for (int max=lo; max<=max_match_length; max++) {
+				sum += ratios[max];
+				row[max - lo] = sum;
+			}
+		}
+	}
+	
+	// min_match_length <= min <= max <= max_match_length, 0 <= pos
+	double weight(int min, int max, int pos) {
+		int lo = Math.max(min, pos + 1);
+		if (lo > max) return 0;
+		return this.sums[lo - this.min_match_length][max - lo];
+	}
+	
+	// bytes of the table
+	static long bytes(int min_match_length, int max_match_length) {
+		long rows = max_match_length - min_match_length + 1;
+		return rows * (rows + 1) / 2 * 8 + rows * 16;
+	}
+}
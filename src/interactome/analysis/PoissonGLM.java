@@ -0,0 +1,156 @@
+package interactome.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import interactome.Logger;
+
+/*
+ * in-process poisson glm solver (log link, no intercept, two covariates, offset).
+ * follows glm.fit of R: starts from mu = y + 0.1, and iterates IRLS until the relative change of
+ * the deviance is below 1e-8 (at most 25 iterations, with step-halving on a non-finite deviance).
+ * each iteration is a single pass over the data, which accumulates the deviance of the current
+ * coefficients and the 2x2 normal equations for the next ones in fixed-size blocks on a thread pool.
+ * block partials are summed in block order, so results do not depend on the number of threads.
+ */
+public class PoissonGLM implements GLMSolver {
+	static final int BLOCK_SIZE = 1 << 16;
+	static final int MAX_ITERATION = 25;
+	static final double EPSILON = 1e-8;
+	
+	ExecutorService pool;
+	
+	public PoissonGLM(int threads) {
+		this.pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "glm-" + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	// partial sums of a block
+	static class Sums {
+		double deviance = 0;
+		double s22 = 0, s23 = 0, s33 = 0; // X'WX
+		double g2 = 0, g3 = 0;            // X'Wz
+		
+		void add(Sums other) {
+			this.deviance += other.deviance;
+			this.s22 += other.s22;
+			this.s23 += other.s23;
+			this.s33 += other.s33;
+			this.g2 += other.g2;
+			this.g3 += other.g3;
+		}
+	}
+	
+	@Override
+	public double[] fit(int[] y, double[] x2, double[] x3, double[] offset) throws Exception {
+		// initial pass from mu = y + 0.1
+		Sums sums = this.pass(y, x2, x3, offset, null);
+		double deviance_old = sums.deviance;
+		double[] coefficients_old = null;
+		double[] coefficients = solve(sums);
+		
+		for (int iteration=1; iteration<=MAX_ITERATION; iteration++) {
+			sums = this.pass(y, x2, x3, offset, coefficients);
+			
+			// step-halving
+			for (int halving=0; !isFinite(sums.deviance); halving++) {
+				if (coefficients_old == null || halving >= MAX_ITERATION) {
+					throw new ArithmeticException("no valid set of coefficients has been found");
+				}
+				coefficients[0] = (coefficients[0] + coefficients_old[0]) / 2;
+				coefficients[1] = (coefficients[1] + coefficients_old[1]) / 2;
+				sums = this.pass(y, x2, x3, offset, coefficients);
+			}
+			
+			if (Math.abs(sums.deviance - deviance_old) / (Math.abs(sums.deviance) + 0.1) < EPSILON) {
+				return coefficients;
+			}
+			deviance_old = sums.deviance;
+			coefficients_old = coefficients;
+			coefficients = solve(sums);
+		}
+		Logger.errorf("poisson glm did not converge in %d iterations.", MAX_ITERATION);
+		return coefficients;
+	}
+	
+	/*
+	 * deviance at the coefficients (or at mu = y + 0.1 if null), and the normal equations of the IRLS step from there.
+	 */
+	Sums pass(final int[] y, final double[] x2, final double[] x3, final double[] offset, final double[] coefficients) throws Exception {
+		int n = y.length;
+		List<Future<Sums>> futures = new ArrayList<Future<Sums>>();
+		for (int start=0; start<n; start+=BLOCK_SIZE) {
+			final int block_start = start;
+			final int block_end = Math.min(n, start + BLOCK_SIZE);
+			futures.add(this.pool.submit(new Callable<Sums>() {
+				public Sums call() {
+					return block(y, x2, x3, offset, coefficients, block_start, block_end);
+				}
+			}));
+		}
+		Sums total = new Sums();
+		for (Future<Sums> future : futures) total.add(future.get());
+		return total;
+	}
+	
+	static Sums block(int[] y, double[] x2, double[] x3, double[] offset, double[] coefficients, int start, int end) {
+		Sums sums = new Sums();
+		for (int i=start; i<end; i++) {
+			double mu, eta;
+			if (coefficients == null) {
+				mu = y[i] + 0.1;
+				eta = Math.log(mu);
+			} else {
+				eta = coefficients[0] * x2[i] + coefficients[1] * x3[i] + offset[i];
+				mu = Math.exp(eta);
+			}
+			
+			// unit deviance
+			sums.deviance += 2 * ((y[i] > 0 ? y[i] * Math.log(y[i] / mu) : 0) - (y[i] - mu));
+			
+			// working response and weight (w = mu for the log link)
+			double z = eta - offset[i] + (y[i] - mu) / mu;
+			sums.s22 += mu * x2[i] * x2[i];
+			sums.s23 += mu * x2[i] * x3[i];
+			sums.s33 += mu * x3[i] * x3[i];
+			sums.g2 += mu * x2[i] * z;
+			sums.g3 += mu * x3[i] * z;
+		}
+		return sums;
+	}
+	
+	// solve the 2x2 normal equations (columns are scaled to unit diagonal first)
+	static double[] solve(Sums sums) {
+		double d2 = Math.sqrt(sums.s22);
+		double d3 = Math.sqrt(sums.s33);
+		double r = sums.s23 / (d2 * d3);
+		double h2 = sums.g2 / d2;
+		double h3 = sums.g3 / d3;
+		double det = 1 - r * r;
+		if (!(det > 0)) throw new ArithmeticException("singular design matrix in poisson glm");
+		return new double[]{
+			(h2 - r * h3) / det / d2,
+			(h3 - r * h2) / det / d3,
+		};
+	}
+	
+	static boolean isFinite(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+	
+	@Override
+	public void close() {
+		this.pool.shutdown();
+	}
+}
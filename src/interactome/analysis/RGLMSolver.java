@@ -0,0 +1,38 @@
+package interactome.analysis;
+
+import org.rosuda.JRI.*;
+
+/*
+ * glm of R through JRI.
+ * this file is compiled only if lib/JRI.jar exists (see build.xml), and loaded by name from BiasCorrector.
+ */
+public class RGLMSolver implements GLMSolver {
+	Rengine engine;
+	
+	public RGLMSolver() {
+		this.engine = new Rengine(new String[]{"--no-save"}, false, null);
+	}
+	
+	@Override
+	public double[] fit(int[] y, double[] x2, double[] x3, double[] offset) {
+		REXP result;
+		
+		engine.assign("x1",y);
+		engine.assign("x2",x2);
+		engine.assign("x3",x3);
+		engine.assign("cs",offset);
+		engine.eval("glmres<-glm(x1~x2+x3-1, family=poisson, offset=cs)");
+		
+		double[] coefficients = new double[2];
+		result = engine.eval("glmres$coefficients[1]");
+		coefficients[0] = result.asDouble();
+		result = engine.eval("glmres$coefficients[2]");
+		coefficients[1] = result.asDouble();
+		return coefficients;
+	}
+	
+	@Override
+	public void close() {
+		engine.end();
+	}
+}
@@ -0,0 +1,79 @@
+package interactome.analysis;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import interactome.data.Refseq;
+
+/*
+ * runs a per-refseq action over an array of refseqs on a fork/join pool.
+ * ranges are split at the middle of their total length (not of their count), so that long refseqs
+ * become tasks of their own, and idle threads steal the remaining ranges.
+ * each refseq is processed by exactly one task, so per-refseq results do not depend on the number of threads.
+ * the workers are daemon threads of the fork/join pool; close() ends them when the pool is no longer used.
+ */
+class RefseqPool {
+	static final long LEAF_LENGTH = 1 << 18; // total bases per task
+	
+	interface Action {
+		void run(int index, Refseq refseq);
+	}
+	
+	ForkJoinPool pool;
+	
+	RefseqPool(int threads) {
+		this.pool = new ForkJoinPool(Math.max(1, threads));
+	}
+	
+	// run the action for each non-null refseq of refseqs
+	void forEach(Refseq[] refseqs, Action action) {
+		long[] length_sums = new long[refseqs.length + 1];
+		for (int i=0; i<refseqs.length; i++) {
+			length_sums[i+1] = length_sums[i] + (refseqs[i] == null ? 0 : refseqs[i].length) + 1;
+		}
+		this.pool.invoke(new Task(refseqs, action, length_sums, 0, refseqs.length));
+	}
+	
+	// end the workers once the running tasks are done
+	void close() {
+		this.pool.shutdown();
+	}
+	
+	static class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final Refseq[] refseqs;
+		final Action action;
+		final long[] length_sums;
+		final int start, end;
+		
+		Task(Refseq[] refseqs, Action action, long[] length_sums, int start, int end) {
+			this.refseqs = refseqs;
+			this.action = action;
+			this.length_sums = length_sums;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if (this.end - this.start > 1 && this.length_sums[this.end] - this.length_sums[this.start] > LEAF_LENGTH) {
+				// the first index whose prefix length reaches the middle, kept inside (start, end)
+				long middle = (this.length_sums[this.start] + this.length_sums[this.end]) / 2;
+				int lo = this.start + 1, hi = this.end - 1;
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (this.length_sums[mid] < middle) lo = mid + 1;
+					else hi = mid;
+				}
+				invokeAll(new Task(this.refseqs, this.action, this.length_sums, this.start, lo),
+						new Task(this.refseqs, this.action, this.length_sums, lo, this.end));
+				return;
+			}
+			for (int i=this.start; i<this.end; i++) {
+				if (this.refseqs[i] == null) continue;
+				this.action.run(i, this.refseqs[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package interactome.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * heat map histograms of regression residues (see ResultsWriter), accumulated while residues are calculated
+ * instead of keeping residue_init / residue_end of every position.
+ *   poly-A: x = distance from poly-A (0-20000 in 200 bins), y = residue (15 to -15 in 200 bins)
+ *   GC:     x = gc percent (0-100 in 100 bins), y = residue (15 to -15 in 100 bins)
+ * each for residues before and after the correction.
+ * bins are computed from float residues as the heat maps of residue arrays are.
+ * counts are kept per thread and summed at the end; sums of counts do not depend on the order.
+ */
+public class ResidueHistograms {
+	static final double RESIDUE_MIN = -15;
+	static final double RESIDUE_MAX = 15;
+	static final int POLYA_MIN = 0;
+	static final int POLYA_MAX = 20000;
+	static final int POLYA_SPLIT = 200;
+	static final int GC_MIN = 0;
+	static final int GC_MAX = 100;
+	static final int GC_SPLIT = 100;
+	
+	// [y][x] counts
+	long[][] polya_before = new long[POLYA_SPLIT+1][POLYA_SPLIT+1];
+	long[][] polya_after = new long[POLYA_SPLIT+1][POLYA_SPLIT+1];
+	long[][] gc_before = new long[GC_SPLIT+1][GC_SPLIT+1];
+	long[][] gc_after = new long[GC_SPLIT+1][GC_SPLIT+1];
+	
+	// per-thread histograms, summed by merge()
+	private List<ResidueHistograms> locals;
+	private ThreadLocal<ResidueHistograms> local;
+	
+	public ResidueHistograms() {
+	}
+	
+	// histograms which are accumulated into per-thread copies through local()
+	static ResidueHistograms concurrent() {
+		final ResidueHistograms histograms = new ResidueHistograms();
+		histograms.locals = new ArrayList<ResidueHistograms>();
+		histograms.local = new ThreadLocal<ResidueHistograms>() {
+			@Override
+			protected ResidueHistograms initialValue() {
+				ResidueHistograms local = new ResidueHistograms();
+				synchronized (histograms.locals) {
+					histograms.locals.add(local);
+				}
+				return local;
+			}
+		};
+		return histograms;
+	}
+	
+	ResidueHistograms local() {
+		return this.local.get();
+	}
+	
+	// sum up the per-thread histograms
+	void merge() {
+		synchronized (this.locals) {
+			for (ResidueHistograms local : this.locals) {
+				add(this.polya_before, local.polya_before);
+				add(this.polya_after, local.polya_after);
+				add(this.gc_before, local.gc_before);
+				add(this.gc_after, local.gc_after);
+			}
+			this.locals.clear();
+		}
+		this.local = null;
+	}
+	
+	/*
+	 * count residues of a position. a NaN residue is not counted.
+	 */
+	void add(int gc, int distance, float residue_before, float residue_after) {
+		int polya_x = (int)Math.round((double)distance / (POLYA_MAX - POLYA_MIN) * POLYA_SPLIT);
+		int gc_x = (int)Math.round((double)gc / (GC_MAX - GC_MIN) * GC_SPLIT);
+		if (!Float.isNaN(residue_before)) {
+			count(this.polya_before, polya_x, POLYA_SPLIT, residue_before);
+			count(this.gc_before, gc_x, GC_SPLIT, residue_before);
+		}
+		if (!Float.isNaN(residue_after)) {
+			count(this.polya_after, polya_x, POLYA_SPLIT, residue_after);
+			count(this.gc_after, gc_x, GC_SPLIT, residue_after);
+		}
+	}
+	
+	private static void count(long[][] data, int x, int split, float residue) {
+		if (x >= split) return;
+		int y = (int)Math.round((RESIDUE_MAX - residue) / (RESIDUE_MAX - RESIDUE_MIN) * split);
+		if (y < 0) return;
+		if (y >= split) return;
+		data[y][x]++;
+	}
+	
+	private static void add(long[][] to, long[][] from) {
+		for (int y=0; y<to.length; y++) {
+			for (int x=0; x<to[y].length; x++) to[y][x] += from[y][x];
+		}
+	}
+	
+	public double[][] polyA(boolean after) {
+		return toDouble(after ? this.polya_after : this.polya_before);
+	}
+	
+	public double[][] gc(boolean after) {
+		return toDouble(after ? this.gc_after : this.gc_before);
+	}
+	
+	private static double[][] toDouble(long[][] data) {
+		double[][] result = new double[data.length][];
+		for (int y=0; y<data.length; y++) {
+			result[y] = new double[data[y].length];
+			for (int x=0; x<data[y].length; x++) result[y][x] = data[y][x];
+		}
+		return result;
+	}
+}
@@ -1,21 +1,19 @@
 package interactome.analysis;
 
-import java.awt.Color;
-import java.awt.Font;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
-
-import org.tc33.jheatchart.HeatChart;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import interactome.Logger;
 import interactome.Option;
 import interactome.analysis.Analysis.InteractionResult;
-import interactome.data.BioDB;
 import interactome.data.Interaction;
 import interactome.data.Refseq;
 import interactome.input.GeneInput;
@@ -23,21 +21,23 @@ import interactome.input.Input;
 import interactome.input.RefseqInput;
 
 public class ResultsWriter {
-	public static ResultsWriter _instance;
+	public static final InheritableThreadLocal<ResultsWriter> _instance = new InheritableThreadLocal<ResultsWriter>(); // per sample (see Batch)
 	public static ResultsWriter getInstance() {
-		return _instance;
+		return _instance.get();
 	}
-	public static ResultsWriter createInstance(Input input, DynamicParameters dynamicParameters) {
-		_instance = new ResultsWriter(input, dynamicParameters);
-		return _instance;
+	public static ResultsWriter createInstance(Input input, DynamicParameters dynamicParameters, Interaction[] interactions) {
+		_instance.set(new ResultsWriter(input, dynamicParameters, interactions));
+		return _instance.get();
 	}
 	
 	Input input;
 	DynamicParameters dynamicParameters;
+	Interaction[] interactions;
 	
-	public ResultsWriter(Input input, DynamicParameters dynamicParameters) {
+	public ResultsWriter(Input input, DynamicParameters dynamicParameters, Interaction[] interactions) {
 		this.input = input;
 		this.dynamicParameters = dynamicParameters;
+		this.interactions = interactions;
 	}
 	
 	// Refseq_cancer / Refseq_stroma
@@ -46,18 +46,18 @@ public class ResultsWriter {
 		
 		// cancer
 		ArrayList<RefseqInput> inputs = new ArrayList<RefseqInput>();
-		for (Map.Entry<String, RefseqInput> entry : this.input.refseq_inputs.entrySet()) {
-			if (entry.getValue().refseq.tax_id.equals(option.settings.get("cancer_taxonomy"))) {
-				inputs.add(entry.getValue());
+		for (RefseqInput rinput : this.input.validRefseqInputs()) {
+			if (rinput.refseq.tax_id.equals(option.settings.get("cancer_taxonomy"))) {
+				inputs.add(rinput);
 			}
 		}
 		this.writeRefseqFile("Refseq_cancer.txt", inputs.toArray(new RefseqInput[]{}));
 		
 		// stroma
 		inputs.clear();
-		for (Map.Entry<String, RefseqInput> entry : this.input.refseq_inputs.entrySet()) {
-			if (entry.getValue().refseq.tax_id.equals(option.settings.get("stromal_taxonomy"))) {
-				inputs.add(entry.getValue());
+		for (RefseqInput rinput : this.input.validRefseqInputs()) {
+			if (rinput.refseq.tax_id.equals(option.settings.get("stromal_taxonomy"))) {
+				inputs.add(rinput);
 			}
 		}
 		this.writeRefseqFile("Refseq_stroma.txt", inputs.toArray(new RefseqInput[]{}));
@@ -100,22 +100,81 @@ public class ResultsWriter {
 		Logger.logf("wrote KEGGHPRD files.");
 	}
 	
+	/*
+	 * heat maps of regression residues (see HeatmapRenderer), for all refseqs and for the parameter refseqs.
+	 * with residue_store=arrays, all eight histograms are counted from the residue arrays in one pass.
+	 * heatmap_format selects png (drawn concurrently), tsv (raw histograms, without AWT), or both.
+	 */
 	public void drawHeatmaps() {
-		// all
-		drawPolyAHeatMap("from-poly-A", input.refseq_inputs.values(), false);
-		drawPolyAHeatMap("from-poly-A", input.refseq_inputs.values(), true);
-		drawGCHeatMap("GC", input.refseq_inputs.values(), false);
-		drawGCHeatMap("GC", input.refseq_inputs.values(), true);
+		Option option = Option.getInstance();
+		BiasCorrector bc = BiasCorrector.getInstance();
+		
+		ResidueHistograms all = bc.histograms_all;
+		ResidueHistograms estim = bc.histograms_estim;
+		if (all == null) {
+			all = new ResidueHistograms();
+			estim = new ResidueHistograms();
+			HashSet<Refseq> estim_refseqs = new HashSet<Refseq>(Arrays.asList(dynamicParameters.parameterRefseqs));
+			for (RefseqInput rinput : input.validRefseqInputs()) {
+				if (rinput.residue_init == null) continue;
+				Refseq refseq = rinput.refseq;
+				boolean is_estim = estim_refseqs.contains(refseq);
+				for (int i=0; i<refseq.length; i++) {
+					all.add(refseq.gc_percent[i], refseq.length - i, rinput.residue_init[i], rinput.residue_end[i]);
+					if (is_estim) estim.add(refseq.gc_percent[i], refseq.length - i, rinput.residue_init[i], rinput.residue_end[i]);
+				}
+			}
+		}
+		
+		String format = option.settings.get("heatmap_format");
+		boolean png = format.equals("png") || format.equals("both");
+		boolean tsv = format.equals("tsv") || format.equals("both");
+		
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int k=0; k<8; k++) {
+			final boolean is_gc = (k & 1) != 0;
+			final boolean after = (k & 2) != 0;
+			final ResidueHistograms histograms = (k & 4) == 0 ? all : estim;
+			final String prefix = (is_gc ? "GC" : "from-poly-A") + ((k & 4) == 0 ? "" : "_estim");
+			final String name = option.output_path + "/" + prefix + "_" + (after ? "after" : "before") + "_correction";
+			final double[][] data = is_gc ? histograms.gc(after) : histograms.polyA(after);
+			
+			if (tsv) {
+				if (is_gc) {
+					writeHeatmapTable(new File(name + ".tsv"), data, HeatmapRenderer.gcXValues(), HeatmapRenderer.gcYValues());
+				} else {
+					writeHeatmapTable(new File(name + ".tsv"), data, HeatmapRenderer.polyAXValues(), HeatmapRenderer.polyAYValues());
+				}
+			}
+			if (png) {
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						try {
+							if (is_gc) {
+								HeatmapRenderer.renderGC(data, new File(name + ".png"));
+							} else {
+								HeatmapRenderer.renderPolyA(data, new File(name + ".png"));
+							}
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+						return null;
+					}
+				});
+			}
+		}
 		
-		// estimator
-		ArrayList<RefseqInput> estim_rinputs = new ArrayList<RefseqInput>();
-		for (int i=0; i<dynamicParameters.parameterRefseqs.length; i++) {
-			estim_rinputs.add(input.refseq_inputs.get(dynamicParameters.parameterRefseqs[i].refseq_id));
+		// render the png files on a small pool
+		if (!tasks.isEmpty()) {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(tasks.size(), Math.max(1, option.threads)));
+			try {
+				pool.invokeAll(tasks);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} finally {
+				pool.shutdown();
+			}
 		}
-		drawPolyAHeatMap("from-poly-A_estim", estim_rinputs, false);
-		drawPolyAHeatMap("from-poly-A_estim", estim_rinputs, true);
-		drawGCHeatMap("GC_estim", estim_rinputs, false);
-		drawGCHeatMap("GC_estim", estim_rinputs, true);
 		
 		Logger.logf("wrote heatmaps.");
 	}
@@ -156,12 +215,12 @@ public class ResultsWriter {
 					row.rawCount,
 					row.true_expression,
 					row.refseq.length,
-					row.refseq.mappable_position_count_for_specific_read_length(read_length_to_calculate_mappable_read_count),
+					row.refseq.mappable_position_count_for_specific_read_length(read_length_to_calculate_mappable_read_count, option.directional_mode),
 					1.0 - row.coverage(1),
 					row.coverage(10),
 					row.coverage(20),
 					row.coverage(30),
-					row.refseq.is_long_and_unmappable ? "Y" : "N",
+					row.is_long_and_unmappable ? "Y" : "N",
 				};
 				for (int i=0; i<data.length; i++) {
 					bw.write(String.valueOf(data[i]));
@@ -225,7 +284,6 @@ public class ResultsWriter {
 	// KEGGHPRD_result(_cancer/stroma_ligand/receptor).txt
 	private void writeKEGGHPRDResult() {
 		Option option = Option.getInstance();
-		BioDB biodb = BioDB.getInstance();
 	
 		try {
 			FileWriter fw = new FileWriter(option.output_path + "/KEGGHPRD_result.txt");
@@ -253,7 +311,7 @@ public class ResultsWriter {
 				else bw.write("\n");
 			}
 			
-			for (Interaction interaction : biodb.interactions) {
+			for (Interaction interaction : this.interactions) {
 				// cancer -> stroma
 				Object[] data;
 				if (interaction.valid_cancer_to_stroma) {
@@ -327,7 +385,6 @@ public class ResultsWriter {
 	
 	private void writeKEGGHPRDResultCancerLigand() {
 		Option option = Option.getInstance();
-		BioDB biodb = BioDB.getInstance();
 	
 		try {
 			FileWriter fw = new FileWriter(option.output_path + "/KEGGHPRD_result_cancer_ligand.txt");
@@ -351,7 +408,7 @@ public class ResultsWriter {
 			}
 
 			HashSet<String> used = new HashSet<String>();
-			for (Interaction interaction : biodb.interactions) {
+			for (Interaction interaction : this.interactions) {
 				if (used.contains(interaction.ligand_symbol)) continue;
 				used.add(interaction.ligand_symbol);
 
@@ -386,7 +443,6 @@ public class ResultsWriter {
 	
 	private void writeKEGGHPRDResultCancerReceptor() {
 		Option option = Option.getInstance();
-		BioDB biodb = BioDB.getInstance();
 	
 		try {
 			FileWriter fw = new FileWriter(option.output_path + "/KEGGHPRD_result_cancer_receptor.txt");
@@ -410,7 +466,7 @@ public class ResultsWriter {
 			}
 			
 			HashSet<String> used = new HashSet<String>();
-			for (Interaction interaction : biodb.interactions) {
+			for (Interaction interaction : this.interactions) {
 				if (used.contains(interaction.receptor_symbol)) continue;
 				used.add(interaction.receptor_symbol);
 				Object[] data;
@@ -444,7 +500,6 @@ public class ResultsWriter {
 	
 	private void writeKEGGHPRDResultStromaLigand() {
 		Option option = Option.getInstance();
-		BioDB biodb = BioDB.getInstance();
 	
 		try {
 			FileWriter fw = new FileWriter(option.output_path + "/KEGGHPRD_result_stroma_ligand.txt");
@@ -468,7 +523,7 @@ public class ResultsWriter {
 			}
 
 			HashSet<String> used = new HashSet<String>();
-			for (Interaction interaction : biodb.interactions) {
+			for (Interaction interaction : this.interactions) {
 				if (!interaction.valid_stroma_to_cancer || used.contains(interaction.ligand_symbol)) continue;
 				used.add(interaction.ligand_symbol);
 				
@@ -503,7 +558,6 @@ public class ResultsWriter {
 	
 	private void writeKEGGHPRDResultStromaReceptor() {
 		Option option = Option.getInstance();
-		BioDB biodb = BioDB.getInstance();
 	
 		try {
 			FileWriter fw = new FileWriter(option.output_path + "/KEGGHPRD_result_stroma_receptor.txt");
@@ -527,7 +581,7 @@ public class ResultsWriter {
 			}
 
 			HashSet<String> used = new HashSet<String>();
-			for (Interaction interaction : biodb.interactions) {
+			for (Interaction interaction : this.interactions) {
 				if (!interaction.valid_cancer_to_stroma || used.contains(interaction.receptor_symbol)) continue;
 				used.add(interaction.receptor_symbol);
 				
@@ -561,154 +615,37 @@ public class ResultsWriter {
 	}
 
 	/*
-	 * draw heat maps where X-axis = poly-a dist, Y-axis = residue of regression equation for before/after correction:
-	 * log(C_i_j) = log( mappability_ratio * v_i ) + (gc %) * alpha + (poly-A) * beta + [Residue]
-	 * 	 C_i_j = count of reads overlapping position j of gene i
-	 *   mappability_ratio = refer to the original paper
-	 *   v_i = expression
-	 * 
-	 * before: v = v^1_i, alpha = beta = 0
-	 * after : v = true_expression, alpha = alpha', beta = beta'
+	 * write a heat map histogram as a tab-separated matrix.
+	 * the first row holds the x values, and each following row the y value and counts of a y bin.
 	 */
-	private void drawPolyAHeatMap(String prefix, Collection<RefseqInput> rinputs, boolean after) {
-		Option option = Option.getInstance();
-		
-		double residue_min = -15;
-		double residue_max = 15;
-		int polya_min = 0;
-		int polya_max = 20000;
-		
-		int x_split = 200;
-		int y_split = 200;
-		
-		double[][] data = new double[y_split+1][x_split+1];
-		
-		for (RefseqInput rinput : input.refseq_inputs.values()) {
-			Refseq refseq = rinput.refseq;
-			for (int i=0; i<rinput.refseq.length; i++) {
-				if ((!after && Float.isNaN(rinput.residue_init[i])) || (after && Float.isNaN(rinput.residue_end[i])) ) continue;
-				int x = (int)Math.round((double)(refseq.length - i) / (polya_max - polya_min) * x_split);
-				if (x >= x_split) continue;
-				
-				float left = after ? rinput.residue_end[i] : rinput.residue_init[i];
-				int y = (int)Math.round((residue_max - left) / (residue_max - residue_min) * y_split);
-				if (y < 0) continue;
-				if (y >= y_split) continue;
-				
-				data[y][x]++;
-			}
-		}
-		
+	private void writeHeatmapTable(File file, double[][] data, Object[] x_values, Object[] y_values) {
 		try {
-			HeatChart heatmap = new HeatChart(data);
-			heatmap.setBackgroundColour(new Color(0, 0, 0));
-			heatmap.setHighValueColour(new Color(0, 255, 0));
-			heatmap.setLowValueColour(new Color(0, 0, 0));
-			heatmap.setAxisColour(new Color(255, 255, 255));
-			heatmap.setAxisLabelColour(new Color(255, 255, 255));
-			heatmap.setAxisValuesColour(new Color(255, 255, 255));
-			heatmap.setAxisLabelsFont(new Font("SansSerif", Font.PLAIN, 72));
-			heatmap.setAxisValuesFont(new Font("SansSerif", Font.PLAIN, 64));
-			heatmap.setColourScale(0.8);
-			heatmap.setXAxisLabel("from poly-A");
-			heatmap.setYAxisLabel("regression residue");
-			heatmap.setChartMargin(32);
+			FileWriter fw = new FileWriter(file);
+			BufferedWriter bw = new BufferedWriter(fw);
 			
-			Object[] x_values = new Object[x_split+1];
-			Object[] y_values = new Object[y_split+1];
-			for (int i=0; i<=x_split; i++) {
-				x_values[i] = polya_min + (polya_max - polya_min) / x_split * i;
+			StringBuilder sb = new StringBuilder();
+			sb.append("residue");
+			for (int x=0; x<x_values.length; x++) {
+				sb.append('\t').append(x_values[x]);
 			}
-			for (int i=0; i<=y_split; i++) {
-				y_values[i] = residue_max - (residue_max - residue_min) / y_split * i;
-			}
-			heatmap.setXValues(x_values);
-			heatmap.setYValues(y_values);
-			heatmap.setXAxisValuesFrequency(20);
-			heatmap.setYAxisValuesFrequency(20);
-			heatmap.setShowXAxisValues(true);
-			heatmap.setShowYAxisValues(true);
+			bw.write(sb.toString());
+			bw.newLine();
 			
-			heatmap.saveToFile(
-				new File(option.output_path + "/" + prefix + "_" + (after ? "after" : "before") + "_correction.png"));
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
-
-	/*
-	 * draw heat maps where X-axis = gc%, Y-axis = residue of regression equation for before/after correction:
-	 * log(C_i_j) = log( mappability_ratio * v_i ) + (gc %) * alpha + (poly-A) * beta + [Residue]
-	 * 	 C_i_j = count of reads overlapping position j of gene i
-	 *   mappability_ratio = refer to the original paper
-	 *   v_i = expression
-	 * 
-	 * before: v = v^1_i, alpha = beta = 0
-	 * after : v = true_expression, alpha = alpha', beta = beta'
-	 */
-	private void drawGCHeatMap(String prefix, Collection<RefseqInput> rinputs, boolean after) {
-		Option option = Option.getInstance();
-		
-		double residue_min = -15;
-		double residue_max = 15;
-		int gc_min = 0;
-		int gc_max = 100;
-		
-		int x_split = 100;
-		int y_split = 100;
-		
-		double[][] data = new double[y_split+1][x_split+1];
-		
-		for (RefseqInput rinput : input.refseq_inputs.values()) {
-			Refseq refseq = rinput.refseq;
-			for (int i=0; i<rinput.refseq.length; i++) {
-				if ((!after && Float.isNaN(rinput.residue_init[i])) || (after && Float.isNaN(rinput.residue_end[i])) ) continue;
-				int x = (int)Math.round((double)refseq.gc_percent[i] / (gc_max - gc_min) * x_split);
-				if (x >= x_split) continue;
-				
-				float left = after ? rinput.residue_end[i] : rinput.residue_init[i];
-				int y = (int)Math.round((residue_max - left) / (residue_max - residue_min) * y_split);
-				if (y < 0) continue;
-				if (y >= y_split) continue;
-				
-				data[y][x]++;
-			}
-		}
-		
-		try {
-			HeatChart heatmap = new HeatChart(data);
-			heatmap.setBackgroundColour(new Color(0, 0, 0));
-			heatmap.setHighValueColour(new Color(0, 255, 0));
-			heatmap.setLowValueColour(new Color(0, 0, 0));
-			heatmap.setAxisColour(new Color(255, 255, 255));
-			heatmap.setAxisLabelColour(new Color(255, 255, 255));
-			heatmap.setAxisValuesColour(new Color(255, 255, 255));
-			heatmap.setAxisLabelsFont(new Font("SansSerif", Font.PLAIN, 36));
-			heatmap.setAxisValuesFont(new Font("SansSerif", Font.PLAIN, 32));
-			heatmap.setColourScale(0.8);
-			heatmap.setXAxisLabel("GC %");
-			heatmap.setYAxisLabel("regression residue");
-			heatmap.setChartMargin(32);
-			
-			Object[] x_values = new Object[x_split+1];
-			Object[] y_values = new Object[y_split+1];
-			for (int i=0; i<=x_split; i++) {
-				x_values[i] = gc_min + (gc_max - gc_min) / x_split * i;
-			}
-			for (int i=0; i<=y_split; i++) {
-				y_values[i] = residue_max - (residue_max - residue_min) / y_split * i;
+			for (int y=0; y<data.length; y++) {
+				sb.setLength(0);
+				sb.append(y_values[y]);
+				for (int x=0; x<data[y].length; x++) {
+					sb.append('\t').append((long)data[y][x]);
+				}
+				bw.write(sb.toString());
+				bw.newLine();
 			}
-			heatmap.setXValues(x_values);
-			heatmap.setYValues(y_values);
-			heatmap.setXAxisValuesFrequency(10);
-			heatmap.setYAxisValuesFrequency(10);
-			heatmap.setShowXAxisValues(true);
-			heatmap.setShowYAxisValues(true);
 			
-			heatmap.saveToFile(
-				new File(option.output_path + "/" + prefix + "_" + (after ? "after" : "before") + "_correction.png"));
+			bw.close();
+			fw.close();
 		} catch (Exception e) {
 			e.printStackTrace();
+			return;
 		}
 	}
 }
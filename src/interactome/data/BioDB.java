@@ -4,9 +4,11 @@ import interactome.Logger;
 import interactome.Option;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -25,16 +27,24 @@ public class BioDB {
 	public HashMap<Gene, Gene[]> homolog_stroma2stroma_db;
 	
 	public String[] all_refseq_ids;
+	public Refseq[] all_refseqs; // indexed by Refseq.ordinal
+	public RefseqDictionary refseq_dictionary;
 	public String[] cancer_refseq_ids;
 	public String[] stromal_refseq_ids;
 	
 	public String[] all_entrez_ids;
+	public Gene[] all_genes; // indexed by Gene.ordinal (the order of all_entrez_ids)
 	public String[] cancer_entrez_ids;
 	public String[] stromal_entrez_ids;
 	
 	public Interaction[] interactions;
+	public InteractionPlan interaction_plan;
 	
-	private BioDB() {
+	// self-matching tables loaded into Refseq.unmappable_regions / unmappable_regions_direct
+	boolean self_matching_loaded = false;
+	boolean self_matching_direct_loaded = false;
+	
+	BioDB() {
 		this.refseq_db = new HashMap<String, Refseq>();
 		this.gene_db = new HashMap<String, Gene>();
 		this.gene_cancer_symbol_db = new HashMap<String, Gene>();
@@ -46,16 +56,43 @@ public class BioDB {
 	}
 	
 	public static BioDB createInstance() {
-		BioDB instance = new BioDB();
+		// read the reference bundle, if specified and built from the current reference files
+		BioDB instance = null;
+		String bundle = Option.getInstance().settings.get("reference_bundle");
+		if (!bundle.isEmpty()) {
+			instance = ReferenceBundle.read(new File(bundle));
+		}
 		
-		if (!instance.construct()) {
-			return null;
+		if (instance == null) {
+			instance = new BioDB();
+			if (!instance.construct()) {
+				return null;
+			}
 		}
 		
 		BioDB._instance = instance;
 		return BioDB._instance;
 	}
 	
+	/*
+	 * build-reference: load the reference files including both self-matching tables, and write them
+	 * into the reference bundle (see ReferenceBundle).
+	 */
+	public static boolean buildReference() {
+		String bundle = Option.getInstance().settings.get("reference_bundle");
+		if (bundle.isEmpty()) {
+			Logger.errorf("reference_bundle is missing in property file.");
+			return false;
+		}
+		
+		BioDB instance = new BioDB();
+		if (!instance.construct()) return false;
+		if (!instance.loadSelfMatching(0)) return false;
+		if (!instance.loadSelfMatching(1)) return false;
+		
+		return ReferenceBundle.write(instance, new File(bundle));
+	}
+	
 	private boolean construct() {
 		Logger.logf("\nstart loading BioDB.");
 		
@@ -69,8 +106,7 @@ public class BioDB {
 		Logger.logf("loading BioDB done.");
 
 		Option option = Option.getInstance();
-		if (!this.calculateGCPercent(option.settings.get("cancer_refMrna"))) return false;
-		if (!this.calculateGCPercent(option.settings.get("stromal_refMrna"))) return false;
+		if (!this.calculateGCPercent(option.settings.get("cancer_refMrna"), option.settings.get("stromal_refMrna"))) return false;
 		
 		return true;
 	}
@@ -118,6 +154,17 @@ public class BioDB {
 		System.arraycopy(this.cancer_refseq_ids, 0, this.all_refseq_ids, 0, this.cancer_refseq_ids.length);
 		System.arraycopy(this.stromal_refseq_ids, 0, this.all_refseq_ids, this.cancer_refseq_ids.length, this.stromal_refseq_ids.length);
 		
+		// assign dense ordinals in the order of refNames
+		ArrayList<Refseq> all_refseq_list = new ArrayList<Refseq>();
+		for (String refseq_id : this.all_refseq_ids) {
+			Refseq refseq = this.refseq_db.get(refseq_id);
+			if (refseq.ordinal >= 0) continue; // listed twice
+			refseq.ordinal = all_refseq_list.size();
+			all_refseq_list.add(refseq);
+		}
+		this.all_refseqs = all_refseq_list.toArray(new Refseq[]{});
+		this.refseq_dictionary = new RefseqDictionary(this.all_refseqs);
+		
 		Logger.logf("%d cancer refseq & %d stromal refseq names are loaded from refNames.",
 					cancer_refseq_id_list.size(), stromal_refseq_id_list.size());
 		
@@ -178,6 +225,11 @@ public class BioDB {
 		this.all_entrez_ids = new String[this.cancer_entrez_ids.length + this.stromal_entrez_ids.length];
 		System.arraycopy(this.cancer_entrez_ids, 0, this.all_entrez_ids, 0, this.cancer_entrez_ids.length);
 		System.arraycopy(this.stromal_entrez_ids, 0, this.all_entrez_ids, this.cancer_entrez_ids.length, this.stromal_entrez_ids.length);
+		this.all_genes = new Gene[this.all_entrez_ids.length];
+		for (int i=0; i<this.all_entrez_ids.length; i++) {
+			this.all_genes[i] = this.gene_db.get(this.all_entrez_ids[i]);
+			this.all_genes[i].ordinal = i;
+		}
 
 		
 		Logger.logf("%d cancer genes & %d stromal genes are loaded from refLink.",
@@ -376,94 +428,84 @@ public class BioDB {
 		}
 		
 		this.interactions = interactions.toArray(new Interaction[]{});
+		this.interaction_plan = new InteractionPlan(this.interactions);
 		Logger.logf("%d interactions are loaded.", this.interactions.length);		
 
 		return true;
 	}
 	
-	private boolean calculateGCPercent(String refMrna_filename) {
-		Logger.logf("\ncalculating GC percents for " + refMrna_filename);
+	// gc percents of the refseqs in refMrna files, read concurrently (see GCPercentCalculator)
+	private boolean calculateGCPercent(String... refMrna_filenames) {
+		Option option = Option.getInstance();
+		for (String refMrna_filename : refMrna_filenames) {
+			Logger.logf("\ncalculating GC percents for " + refMrna_filename);
+		}
+		
+		GCPercentCalculator calculator = new GCPercentCalculator(this, option.read_length, option.threads);
+		if (!calculator.calculate(refMrna_filenames)) {
+			return false;
+		}
+		
+		Logger.logf("done.");
+		return true;
+	}
+	
+	/*
+	 * load the self-matching table of a directional mode into unmappable regions of refseqs.
+	 * each table is loaded once, and shared by the samples of a batch.
+	 * self-matching entry is given by 0-order.
+	 */
+	public synchronized boolean loadSelfMatching(int directional_mode) {
+		if (directional_mode == 0 ? this.self_matching_loaded : this.self_matching_direct_loaded) {
+			return true;
+		}
 		Option option = Option.getInstance();
-
-		// DEBUG
-		long[] gc_dist = new long[101];
 		
 		try {
-			// load cancer refMrna
-			FileReader fr = new FileReader(refMrna_filename);
+			FileReader fr = new FileReader(
+				directional_mode == 0 ? option.settings.get("self_matching") : option.settings.get("self_matching_direct")
+						);
 			BufferedReader br = new BufferedReader(fr);
 			
 			String l;
-			String sequence = "";
-			String current_refseq = "";
-			int processed_refseqs = 0;
-			
-			while (true) {
-				l = br.readLine();
-				if (l == null || l.charAt(0) == '>') {
-					if (!current_refseq.equals("")) {
-						int n = option.read_length; // side range
-						
-						int[] is_gc_array = new int[sequence.length() + 2*n - 2];
-						for (int i=0; i<sequence.length(); i++) {
-							if (sequence.charAt(i) == 'g' || sequence.charAt(i) == 'c') {
-								is_gc_array[i + n - 1] = 1;
-							}
-						}
-
-						int[] buffer = new int[n*2-1]; // ring buffer
-						int buffer_start = 0;
-						
-						// initialize buffer
-						int[] gc_counts = new int[sequence.length()];
-						int sum = 0;
-						for (int i=0; i<buffer.length; i++) {					
-							buffer[i] = is_gc_array[i];
-							sum += buffer[i];
-						}
-						for (int scan_pos = n-1; scan_pos<n+sequence.length()-1; scan_pos++) {
-							gc_counts[scan_pos-(n-1)] = sum;
-							if (scan_pos == n+sequence.length()-2) break;
-							
-							sum -= buffer[buffer_start];
-							buffer[buffer_start] = is_gc_array[scan_pos + n];
-							sum += buffer[buffer_start];
-							buffer_start = (buffer_start+1) % buffer.length;
-						}
-
-						Refseq refseq = this.refseq_db.get(current_refseq);
-						refseq.gc_percent = new short[refseq.length];
-						for (int i=0; i<sequence.length(); i++) {
-							int count = Math.min(i+n-1, sequence.length()-1) - Math.max(i-n+1, 0) + 1;
-							double gc_ratio = (double) gc_counts[i] / count;
-							refseq.gc_percent[i] = (short)(gc_ratio * 100);
-							gc_dist[refseq.gc_percent[i]]++;
-						}
-						
-						processed_refseqs++;
-						if (processed_refseqs % 10000 == 0) {
-							Logger.logf("%d", processed_refseqs);
-						}
-					}
-					if (l != null) {
-						current_refseq = l.split(" ")[0].substring(1);
-						sequence = "";
-					}
+			Refseq refseq = null;
+			long[] regions = new long[16]; // regions of refseq, as first << 32 | second
+			int count = 0;
+			while ((l = br.readLine()) != null) {
+				if (l.charAt(0) == '>') {
+					if (refseq != null) addUnmappableRegions(refseq, directional_mode, regions, count);
+					refseq = this.refseq_db.get(l.substring(1));
+					count = 0;
 				} else {
-					sequence = sequence + l.trim().toLowerCase();
+					String[] row = l.split("\t");
+					if (refseq != null) {
+						if (count == regions.length) regions = Arrays.copyOf(regions, count * 2);
+						regions[count++] = ((long)Integer.valueOf(row[1]) << 32) | (Integer.valueOf(row[2]) & 0xffffffffL);
+					}
 				}
-				if (l == null) break;
 			}
+			if (refseq != null) addUnmappableRegions(refseq, directional_mode, regions, count);
 			
 			br.close();
 			fr.close();
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
-			
 		}
 		
-		Logger.logf("done.");
+		if (directional_mode == 0) this.self_matching_loaded = true;
+		else this.self_matching_direct_loaded = true;
 		return true;
 	}
+	
+	// add regions[0, count) to the unmappable regions of refseq
+	private static void addUnmappableRegions(Refseq refseq, int directional_mode, long[] regions, int count) {
+		int[] packed = refseq.unmappableRegions(directional_mode);
+		long[] all = Arrays.copyOf(regions, count + packed.length / 2);
+		for (int r=0; r<packed.length; r+=2) {
+			all[count + r/2] = ((long)packed[r] << 32) | (packed[r+1] & 0xffffffffL);
+		}
+		Arrays.sort(all);
+		refseq.setUnmappableRegions(directional_mode, all);
+	}
 }
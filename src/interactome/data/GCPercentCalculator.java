@@ -0,0 +1,291 @@
+package interactome.data;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import interactome.Logger;
+
+/*
+ * gc percents of refseqs from refMrna FASTA files (see BioDB.calculateGCPercent).
+ *   gc_percent[i] = (short)(100 * (g/c count in [i-n+1, i+n-1]) / (window size)), window clipped to the sequence.
+ * each file is streamed in byte blocks by its own reader thread, which appends the trimmed sequence lines of
+ * records into a chunk; full chunks are processed by the worker threads while reading goes on.
+ * chunks are reused through a bounded pool, so memory does not grow with the file, and a record longer than
+ * a chunk only grows that chunk. lines are handled as BufferedReader.readLine() and String.trim() did.
+ * if a refseq has more than one record, the last one (in the order of the files) is kept, as when reading sequentially.
+ */
+class GCPercentCalculator {
+	static final int BLOCK_SIZE = 1 << 20; // bytes read at once
+	static final int CHUNK_SIZE = 1 << 22; // sequence bytes per task
+	
+	final BioDB biodb;
+	final int n; // side range
+	final ExecutorService workers;
+	final ArrayBlockingQueue<Chunk> free_chunks;
+	final ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+	final long[] ranks; // (file, record) of the record which gave gc_percent of each refseq
+	
+	GCPercentCalculator(BioDB biodb, int n, int threads) {
+		this.biodb = biodb;
+		this.n = n;
+		this.workers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			int count = 0;
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "gc-percent-" + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.free_chunks = new ArrayBlockingQueue<Chunk>(Math.max(1, threads) + 2);
+		while (this.free_chunks.remainingCapacity() > 0) this.free_chunks.add(new Chunk());
+		this.ranks = new long[biodb.all_refseqs.length];
+		Arrays.fill(this.ranks, -1);
+	}
+	
+	// sequences of whole records, concatenated
+	static class Chunk {
+		byte[] data = new byte[CHUNK_SIZE];
+		int length = 0;
+		int[] ends = new int[1024]; // end of each record in data
+		int[] ordinals = new int[1024];
+		long[] ranks = new long[1024];
+		int count = 0;
+		
+		void append(byte[] buf, int start, int end) {
+			int size = end - start;
+			if (this.length + size > this.data.length) {
+				this.data = Arrays.copyOf(this.data, Math.max(this.length + size, this.data.length * 2));
+			}
+			System.arraycopy(buf, start, this.data, this.length, size);
+			this.length += size;
+		}
+		
+		void endRecord(int ordinal, long rank) {
+			if (this.count == this.ends.length) {
+				this.ends = Arrays.copyOf(this.ends, this.count * 2);
+				this.ordinals = Arrays.copyOf(this.ordinals, this.count * 2);
+				this.ranks = Arrays.copyOf(this.ranks, this.count * 2);
+			}
+			this.ends[this.count] = this.length;
+			this.ordinals[this.count] = ordinal;
+			this.ranks[this.count] = rank;
+			this.count++;
+		}
+		
+		void clear() {
+			this.length = 0;
+			this.count = 0;
+		}
+	}
+	
+	/*
+	 * read all files concurrently and fill Refseq.gc_percent.
+	 */
+	boolean calculate(final String[] filenames) {
+		final boolean[] succeeded = new boolean[filenames.length];
+		Thread[] readers = new Thread[filenames.length];
+		for (int f=0; f<filenames.length; f++) {
+			final int file_index = f;
+			readers[f] = new Thread("refmrna-reader-" + f) {
+				@Override
+				public void run() {
+					try {
+						read(filenames[file_index], file_index);
+						succeeded[file_index] = true;
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			readers[f].start();
+		}
+		
+		boolean result = true;
+		try {
+			for (int f=0; f<filenames.length; f++) {
+				readers[f].join();
+				result &= succeeded[f];
+			}
+			synchronized (this.tasks) {
+				for (Future<?> task : this.tasks) task.get();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			result = false;
+		} finally {
+			this.workers.shutdownNow();
+		}
+		return result;
+	}
+	
+	// stream a FASTA file, and hand its lines to a RecordReader
+	private void read(String filename, int file_index) throws Exception {
+		InputStream is = new FileInputStream(filename);
+		RecordReader reader = new RecordReader(file_index);
+		byte[] block = new byte[BLOCK_SIZE];
+		byte[] line = new byte[256]; // a line continued over blocks
+		int line_length = 0;
+		
+		try {
+			int read;
+			while ((read = is.read(block)) > 0) {
+				int start = 0;
+				for (int end=0; end<read; end++) {
+					if (block[end] != '\n') continue;
+					if (line_length > 0) {
+						line = append(line, line_length, block, start, end);
+						reader.line(line, 0, line_length + end - start);
+						line_length = 0;
+					} else {
+						reader.line(block, start, end);
+					}
+					start = end + 1;
+				}
+				line = append(line, line_length, block, start, read);
+				line_length += read - start;
+			}
+			if (line_length > 0) reader.line(line, 0, line_length); // last line without a newline
+			reader.finish();
+		} finally {
+			is.close();
+			reader.release();
+		}
+		
+		Logger.logf("done (%s).", filename);
+	}
+	
+	private static byte[] append(byte[] line, int line_length, byte[] buf, int start, int end) {
+		if (line_length + end - start > line.length) line = Arrays.copyOf(line, Math.max(line_length + end - start, line.length * 2));
+		System.arraycopy(buf, start, line, line_length, end - start);
+		return line;
+	}
+	
+	// records of a file, split from its lines
+	class RecordReader {
+		final int file_index;
+		Chunk chunk = null;
+		int ordinal = -1; // refseq of the current record (-1: none or unknown)
+		int record_count = 0;
+		
+		RecordReader(int file_index) {
+			this.file_index = file_index;
+		}
+		
+		// a line buf[start, end) without its newline
+		void line(byte[] buf, int start, int end) throws InterruptedException {
+			if (end > start && buf[end-1] == '\r') end--;
+			
+			if (end > start && buf[start] == '>') {
+				this.endRecord();
+				
+				// refseq id up to the first space
+				int id_end = start + 1;
+				while (id_end < end && buf[id_end] != ' ') id_end++;
+				this.ordinal = biodb.refseq_dictionary.lookup(buf, start + 1, id_end);
+			} else if (this.ordinal >= 0) {
+				// trimmed sequence line
+				while (start < end && (buf[start] & 0xff) <= ' ') start++;
+				while (end > start && (buf[end-1] & 0xff) <= ' ') end--;
+				if (this.chunk == null) this.chunk = free_chunks.take();
+				this.chunk.append(buf, start, end);
+			}
+		}
+		
+		private void endRecord() throws InterruptedException {
+			if (this.ordinal < 0) return;
+			if (this.chunk == null) this.chunk = free_chunks.take();
+			this.chunk.endRecord(this.ordinal, ((long)this.file_index << 32) | this.record_count);
+			this.ordinal = -1;
+			
+			this.record_count++;
+			if (this.record_count % 10000 == 0) {
+				Logger.logf("%d", this.record_count);
+			}
+			if (this.chunk.length >= CHUNK_SIZE) {
+				submit(this.chunk);
+				this.chunk = null;
+			}
+		}
+		
+		void finish() throws InterruptedException {
+			this.endRecord();
+			if (this.chunk != null) {
+				submit(this.chunk);
+				this.chunk = null;
+			}
+		}
+		
+		// return the chunk of an unfinished file
+		void release() {
+			if (this.chunk != null) {
+				this.chunk.clear();
+				free_chunks.add(this.chunk);
+				this.chunk = null;
+			}
+		}
+	}
+	
+	private void submit(final Chunk chunk) {
+		Future<?> task = this.workers.submit(new Runnable() {
+			public void run() {
+				try {
+					process(chunk);
+				} finally {
+					chunk.clear();
+					free_chunks.add(chunk);
+				}
+			}
+		});
+		synchronized (this.tasks) {
+			this.tasks.add(task);
+		}
+	}
+	
+	private void process(Chunk chunk) {
+		int start = 0;
+		for (int r=0; r<chunk.count; r++) {
+			int end = chunk.ends[r];
+			Refseq refseq = this.biodb.all_refseqs[chunk.ordinals[r]];
+			short[] gc_percent = this.gcPercent(chunk.data, start, end, refseq.length);
+			synchronized (this.ranks) {
+				if (chunk.ranks[r] > this.ranks[refseq.ordinal]) {
+					this.ranks[refseq.ordinal] = chunk.ranks[r];
+					refseq.gc_percent = gc_percent;
+				}
+			}
+			start = end;
+		}
+	}
+	
+	// gc percents of the sequence data[start, end) by a sliding window, into an array of the refseq length
+	short[] gcPercent(byte[] data, int start, int end, int refseq_length) {
+		int length = end - start;
+		short[] gc_percent = new short[refseq_length];
+		
+		// g/c count of the window [i-n+1, i+n-1] of i = 0
+		int sum = 0;
+		for (int j=0; j<Math.min(n, length); j++) sum += isGC(data[start + j]);
+		
+		for (int i=0; i<Math.min(length, refseq_length); i++) {
+			int count = Math.min(i+n-1, length-1) - Math.max(i-n+1, 0) + 1;
+			double gc_ratio = (double) sum / count;
+			gc_percent[i] = (short)(gc_ratio * 100);
+			
+			// slide the window to i+1
+			if (i+n < length) sum += isGC(data[start + i + n]);
+			if (i-n+1 >= 0) sum -= isGC(data[start + i - n + 1]);
+		}
+		return gc_percent;
+	}
+	
+	private static int isGC(byte b) {
+		return (b == 'g' || b == 'c' || b == 'G' || b == 'C') ? 1 : 0;
+	}
+}
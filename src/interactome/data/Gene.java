@@ -3,6 +3,7 @@ package interactome.data;
 import java.util.ArrayList;
 
 public class Gene {
+	public int ordinal = -1; // dense index in BioDB.all_genes
 	public String entrez_id;
 	public String symbol;
 	
@@ -4,7 +4,7 @@ import interactome.analysis.Analysis;
 
 public class Interaction {
 	public int id;
-	public String type, kegg, url;
+	public String type, kegg, kegg_id, url;
 	public String ligand_symbol, receptor_symbol;
 	public Gene[] ligand_cancer, receptor_cancer, ligand_stroma, receptor_stroma;
 	public boolean valid_cancer_to_stroma = true;
@@ -52,6 +52,7 @@ public class Interaction {
 		this.id = id;
 		this.type = type;
 		this.kegg = kegg;
+		this.kegg_id = kegg_id;
 		
 		this.url = "http://www.genome.jp/kegg/pathway/hsa/hsa" + kegg_id + ".html";
 		
@@ -68,4 +69,24 @@ public class Interaction {
 		if (this.ligand_stroma.length == 0 || this.receptor_cancer.length == 0)
 			this.valid_stroma_to_cancer = false;
 	}
+	
+	// copy of the definition of an interaction without analyze results (results are kept per sample)
+	public Interaction(Interaction interaction) {
+		this.id = interaction.id;
+		this.type = interaction.type;
+		this.kegg = interaction.kegg;
+		this.kegg_id = interaction.kegg_id;
+		this.url = interaction.url;
+		
+		this.ligand_cancer = interaction.ligand_cancer;
+		this.receptor_cancer = interaction.receptor_cancer;
+		this.ligand_stroma = interaction.ligand_stroma;
+		this.receptor_stroma = interaction.receptor_stroma;
+		
+		this.ligand_symbol = interaction.ligand_symbol;
+		this.receptor_symbol = interaction.receptor_symbol;
+		
+		this.valid_cancer_to_stroma = interaction.valid_cancer_to_stroma;
+		this.valid_stroma_to_cancer = interaction.valid_stroma_to_cancer;
+	}
 }
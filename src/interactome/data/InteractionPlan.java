@@ -0,0 +1,65 @@
+package interactome.data;
+
+/*
+ * homolog gene sets of the interactions compiled into CSR arrays of gene ordinals (BioDB.all_genes),
+ * so that the expression of ligands / receptors is summed over primitive arrays instead of looking up
+ * each homolog by entrez id. built once with BioDB, and reused for every sample.
+ *   genes[set][starts[set][k] .. starts[set][k+1]) are the genes of set of interaction k,
+ *   in the order of the homolog arrays of the interaction.
+ */
+public class InteractionPlan {
+	public static final int LIGAND_CANCER = 0;
+	public static final int LIGAND_STROMA = 1;
+	public static final int RECEPTOR_CANCER = 2;
+	public static final int RECEPTOR_STROMA = 3;
+	static final int SET_COUNT = 4;
+	
+	final int[][] starts = new int[SET_COUNT][];
+	final int[][] genes = new int[SET_COUNT][];
+	
+	public InteractionPlan(Interaction[] interactions) {
+		for (int set=0; set<SET_COUNT; set++) {
+			int[] start = new int[interactions.length + 1];
+			for (int k=0; k<interactions.length; k++) {
+				start[k+1] = start[k] + homologs(interactions[k], set).length;
+			}
+			int[] gene = new int[start[interactions.length]];
+			for (int k=0; k<interactions.length; k++) {
+				Gene[] homologs = homologs(interactions[k], set);
+				for (int i=0; i<homologs.length; i++) {
+					gene[start[k] + i] = homologs[i].ordinal;
+				}
+			}
+			this.starts[set] = start;
+			this.genes[set] = gene;
+		}
+	}
+	
+	private static Gene[] homologs(Interaction interaction, int set) {
+		switch (set) {
+		case LIGAND_CANCER:		return interaction.ligand_cancer;
+		case LIGAND_STROMA:		return interaction.ligand_stroma;
+		case RECEPTOR_CANCER:	return interaction.receptor_cancer;
+		default:				return interaction.receptor_stroma;
+		}
+	}
+	
+	// sum of values over the genes of a set of interaction k
+	public double sum(int set, int k, double[] values) {
+		int[] gene = this.genes[set];
+		double sum = 0;
+		for (int i=this.starts[set][k]; i<this.starts[set][k+1]; i++) {
+			sum += values[gene[i]];
+		}
+		return sum;
+	}
+	
+	public long sum(int set, int k, long[] values) {
+		int[] gene = this.genes[set];
+		long sum = 0;
+		for (int i=this.starts[set][k]; i<this.starts[set][k+1]; i++) {
+			sum += values[gene[i]];
+		}
+		return sum;
+	}
+}
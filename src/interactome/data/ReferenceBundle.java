@@ -0,0 +1,484 @@
+package interactome.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import interactome.Logger;
+import interactome.Option;
+
+/*
+ * binary snapshot of BioDB written by the build-reference command, and read through memory-mapped windows
+ * instead of parsing the reference files. concurrent runs share the bundle through the page cache.
+ *   header: magic, version, settings key (read_length and taxonomies), digest of the contents of the source files,
+ *           and path, size and modification time of each source file.
+ *   body:   refseqs (id, tax id, length, gc percents, unmappable regions of both self-matching tables),
+ *           refNames lists, genes (with variants), the hash maps of BioDB as entries in their iteration order
+ *           (re-inserted in that order, they iterate in the same order), and interactions.
+ * a bundle is used only if it was built with the same settings key from the same sources. sources whose size and
+ * modification time are unchanged are accepted without reading them; otherwise their contents are digested again.
+ */
+public class ReferenceBundle {
+	static final byte[] MAGIC = "CASTINRB".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 3;
+	static final long WINDOW = 1L << 30; // bytes mapped at once
+	
+	// settings items of the source files
+	static final String[] SOURCES = {
+		"refLink",
+		"cancer_refNames",
+		"cancer_refSeqLen",
+		"cancer_refMrna",
+		"stromal_refNames",
+		"stromal_refSeqLen",
+		"stromal_refMrna",
+		"homologene",
+		"self_matching",
+		"self_matching_direct",
+		"curated_HPRD_KEGG",
+	};
+	
+	/*
+	 * write a BioDB (with both self-matching tables loaded) into file.
+	 * the bundle is written into a temporary file of its own and renamed, so that running analyses (or another
+	 * build-reference) never see a partial bundle.
+	 */
+	public static boolean write(BioDB biodb, File file) {
+		Option option = Option.getInstance();
+		
+		Logger.logf("\nwriting reference bundle %s.", file.getPath());
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+			String digest = digest(option);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+			
+			// header
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, settingsKey(option));
+			writeString(out, digest);
+			out.writeInt(SOURCES.length);
+			for (String source : SOURCES) {
+				File source_file = new File(option.settings.get(source));
+				writeString(out, source_file.getPath());
+				out.writeLong(source_file.length());
+				out.writeLong(source_file.lastModified());
+			}
+			
+			// refseqs in the ordinal order
+			out.writeInt(biodb.all_refseqs.length);
+			for (Refseq refseq : biodb.all_refseqs) {
+				writeString(out, refseq.refseq_id);
+				writeString(out, refseq.tax_id);
+				out.writeInt(refseq.length);
+				out.writeBoolean(refseq.is_invalid);
+				if (refseq.gc_percent == null) {
+					out.writeInt(-1);
+				} else {
+					out.writeInt(refseq.gc_percent.length);
+					for (short gc : refseq.gc_percent) out.writeByte(gc); // 0-100
+				}
+				writeRegions(out, refseq.unmappable_regions);
+				writeRegions(out, refseq.unmappable_regions_direct);
+			}
+			writeRefseqIds(out, biodb, biodb.cancer_refseq_ids);
+			writeRefseqIds(out, biodb, biodb.stromal_refseq_ids);
+			
+			// genes in the ordinal order (cancer genes first)
+			out.writeInt(biodb.all_genes.length);
+			out.writeInt(biodb.cancer_entrez_ids.length);
+			for (Gene gene : biodb.all_genes) {
+				writeString(out, gene.entrez_id);
+				writeString(out, gene.symbol);
+				writeString(out, gene.tax_id);
+				out.writeInt(gene.variants.size());
+				for (Refseq refseq : gene.variants) out.writeInt(refseq.ordinal);
+			}
+			
+			// hash maps
+			out.writeInt(biodb.refseq_db.size());
+			for (Refseq refseq : biodb.refseq_db.values()) out.writeInt(refseq.ordinal);
+			out.writeInt(biodb.gene_db.size());
+			for (Gene gene : biodb.gene_db.values()) out.writeInt(gene.ordinal);
+			writeSymbols(out, biodb.gene_cancer_symbol_db);
+			writeSymbols(out, biodb.gene_stromal_symbol_db);
+			writeHomologs(out, biodb.homolog_cancer2stroma_db);
+			writeHomologs(out, biodb.homolog_cancer2cancer_db);
+			writeHomologs(out, biodb.homolog_stroma2cancer_db);
+			writeHomologs(out, biodb.homolog_stroma2stroma_db);
+			
+			// interactions
+			out.writeInt(biodb.interactions.length);
+			for (Interaction interaction : biodb.interactions) {
+				out.writeInt(interaction.id);
+				writeString(out, interaction.type);
+				writeString(out, interaction.kegg);
+				writeString(out, interaction.kegg_id);
+				writeString(out, interaction.ligand_symbol);
+				writeString(out, interaction.receptor_symbol);
+				writeGenes(out, interaction.ligand_cancer);
+				writeGenes(out, interaction.receptor_cancer);
+				writeGenes(out, interaction.ligand_stroma);
+				writeGenes(out, interaction.receptor_stroma);
+			}
+			
+			out.close();
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (tmp != null) tmp.delete();
+			Logger.errorf("failed to write reference bundle %s.", file.getPath());
+			return false;
+		}
+		
+		Logger.logf("reference bundle written (%d MB).", file.length() >> 20);
+		return true;
+	}
+	
+	/*
+	 * read a BioDB from file. returns null if the bundle is missing, of another version, or built from other
+	 * sources or settings (the reason is logged), so that the reference files are parsed instead.
+	 */
+	static BioDB read(File file) {
+		Option option = Option.getInstance();
+		
+		if (!file.exists()) {
+			Logger.logf("reference bundle %s does not exist; the reference files are parsed (run build-reference to create it).", file.getPath());
+			return null;
+		}
+		
+		long start_time = System.currentTimeMillis();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				MappedInput in = new MappedInput(raf.getChannel());
+				if (!checkHeader(in, option, file)) return null;
+				
+				BioDB biodb = new BioDB();
+				readBody(in, biodb);
+				
+				Logger.logf("\nBioDB is loaded from reference bundle %s in %d ms.", file.getPath(), System.currentTimeMillis() - start_time);
+				Logger.logf("%d refseqs, %d genes, %d interactions.",
+						biodb.all_refseqs.length, biodb.all_genes.length, biodb.interactions.length);
+				return biodb;
+			} finally {
+				raf.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			Logger.errorf("failed to read reference bundle %s.", file.getPath());
+			return null;
+		}
+	}
+	
+	private static boolean checkHeader(MappedInput in, Option option, File file) throws Exception {
+		byte[] magic = new byte[MAGIC.length];
+		in.need(magic.length).get(magic);
+		if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+			Logger.errorf("%s is not a reference bundle of this version; run build-reference again.", file.getPath());
+			return false;
+		}
+		if (!in.readString().equals(settingsKey(option))) {
+			Logger.errorf("reference bundle %s was built with other settings; run build-reference again.", file.getPath());
+			return false;
+		}
+		String digest = in.readString();
+		
+		int source_count = in.readInt();
+		boolean unchanged = source_count == SOURCES.length;
+		for (int i=0; i<source_count; i++) {
+			String path = in.readString();
+			long size = in.readLong();
+			long last_modified = in.readLong();
+			if (!unchanged) continue;
+			File source_file = new File(option.settings.get(SOURCES[i]));
+			unchanged = path.equals(source_file.getPath()) && size == source_file.length() && last_modified == source_file.lastModified();
+		}
+		if (!unchanged) {
+			// sizes or modification times differ: compare the contents (every source is read again on each run)
+			if (!digest.equals(digest(option))) {
+				Logger.errorf("reference files were changed after reference bundle %s was built; run build-reference again.", file.getPath());
+				return false;
+			}
+			Logger.logf("reference files of reference bundle %s were touched but not changed; run build-reference again to refresh their stamps, so that they are not read to be compared on each run.", file.getPath());
+		}
+		return true;
+	}
+	
+	private static void readBody(MappedInput in, BioDB biodb) throws IOException {
+		HashMap<String, String> tax_ids = new HashMap<String, String>();
+		
+		// refseqs
+		Refseq[] refseqs = new Refseq[in.readInt()];
+		byte[] gc_bytes = new byte[0];
+		for (int i=0; i<refseqs.length; i++) {
+			Refseq refseq = new Refseq(in.readString());
+			refseq.ordinal = i;
+			refseq.tax_id = intern(tax_ids, in.readString());
+			refseq.length = in.readInt();
+			refseq.is_invalid = in.readBoolean();
+			int gc_length = in.readInt();
+			if (gc_length >= 0) {
+				if (gc_bytes.length < gc_length) gc_bytes = new byte[Math.max(gc_length, gc_bytes.length * 2)];
+				in.need(gc_length).get(gc_bytes, 0, gc_length);
+				refseq.gc_percent = new short[gc_length];
+				for (int j=0; j<gc_length; j++) refseq.gc_percent[j] = gc_bytes[j];
+			}
+			refseq.unmappable_regions = readRegions(in);
+			refseq.unmappable_regions_direct = readRegions(in);
+			refseqs[i] = refseq;
+		}
+		biodb.all_refseqs = refseqs;
+		biodb.cancer_refseq_ids = readRefseqIds(in, refseqs);
+		biodb.stromal_refseq_ids = readRefseqIds(in, refseqs);
+		biodb.all_refseq_ids = new String[biodb.cancer_refseq_ids.length + biodb.stromal_refseq_ids.length];
+		System.arraycopy(biodb.cancer_refseq_ids, 0, biodb.all_refseq_ids, 0, biodb.cancer_refseq_ids.length);
+		System.arraycopy(biodb.stromal_refseq_ids, 0, biodb.all_refseq_ids, biodb.cancer_refseq_ids.length, biodb.stromal_refseq_ids.length);
+		biodb.refseq_dictionary = new RefseqDictionary(refseqs);
+		
+		// genes
+		Gene[] genes = new Gene[in.readInt()];
+		int cancer_gene_count = in.readInt();
+		for (int i=0; i<genes.length; i++) {
+			Gene gene = new Gene(in.readString(), in.readString());
+			gene.ordinal = i;
+			gene.tax_id = intern(tax_ids, in.readString());
+			int variant_count = in.readInt();
+			for (int j=0; j<variant_count; j++) {
+				Refseq refseq = refseqs[in.readInt()];
+				gene.variants.add(refseq);
+				refseq.gene = gene;
+			}
+			genes[i] = gene;
+		}
+		biodb.all_genes = genes;
+		biodb.all_entrez_ids = new String[genes.length];
+		for (int i=0; i<genes.length; i++) biodb.all_entrez_ids[i] = genes[i].entrez_id;
+		biodb.cancer_entrez_ids = Arrays.copyOfRange(biodb.all_entrez_ids, 0, cancer_gene_count);
+		biodb.stromal_entrez_ids = Arrays.copyOfRange(biodb.all_entrez_ids, cancer_gene_count, genes.length);
+		
+		// hash maps
+		int refseq_count = in.readInt();
+		for (int i=0; i<refseq_count; i++) {
+			Refseq refseq = refseqs[in.readInt()];
+			biodb.refseq_db.put(refseq.refseq_id, refseq);
+		}
+		int gene_count = in.readInt();
+		for (int i=0; i<gene_count; i++) {
+			Gene gene = genes[in.readInt()];
+			biodb.gene_db.put(gene.entrez_id, gene);
+		}
+		readSymbols(in, genes, biodb.gene_cancer_symbol_db);
+		readSymbols(in, genes, biodb.gene_stromal_symbol_db);
+		readHomologs(in, genes, biodb.homolog_cancer2stroma_db);
+		readHomologs(in, genes, biodb.homolog_cancer2cancer_db);
+		readHomologs(in, genes, biodb.homolog_stroma2cancer_db);
+		readHomologs(in, genes, biodb.homolog_stroma2stroma_db);
+		
+		// interactions
+		Interaction[] interactions = new Interaction[in.readInt()];
+		for (int k=0; k<interactions.length; k++) {
+			int id = in.readInt();
+			String type = in.readString();
+			String kegg = in.readString();
+			String kegg_id = in.readString();
+			String ligand_symbol = in.readString();
+			String receptor_symbol = in.readString();
+			Gene[] ligand_cancer = readGenes(in, genes);
+			Gene[] receptor_cancer = readGenes(in, genes);
+			Gene[] ligand_stroma = readGenes(in, genes);
+			Gene[] receptor_stroma = readGenes(in, genes);
+			interactions[k] = new Interaction(id, type, kegg, kegg_id, ligand_symbol, receptor_symbol,
+					ligand_cancer, receptor_cancer, ligand_stroma, receptor_stroma);
+		}
+		biodb.interactions = interactions;
+		biodb.interaction_plan = new InteractionPlan(interactions);
+		
+		// both self-matching tables are in the bundle
+		biodb.self_matching_loaded = true;
+		biodb.self_matching_direct_loaded = true;
+	}
+	
+	// key of the settings which change the contents of the bundle
+	static String settingsKey(Option option) {
+		return "read_length=" + option.read_length
+				+ "\tcancer_taxonomy=" + option.settings.get("cancer_taxonomy")
+				+ "\tstromal_taxonomy=" + option.settings.get("stromal_taxonomy");
+	}
+	
+	// SHA-256 of the sizes and contents of the source files
+	static String digest(Option option) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		byte[] buf = new byte[1 << 20];
+		for (String source : SOURCES) {
+			File source_file = new File(option.settings.get(source));
+			long size = source_file.length();
+			for (int i=0; i<8; i++) md.update((byte)(size >>> (8 * i)));
+			InputStream is = new FileInputStream(source_file);
+			try {
+				int n;
+				while ((n = is.read(buf)) > 0) md.update(buf, 0, n);
+			} finally {
+				is.close();
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+	
+	private static String intern(HashMap<String, String> strings, String s) {
+		if (s == null) return null;
+		String interned = strings.get(s);
+		if (interned == null) {
+			strings.put(s, s);
+			interned = s;
+		}
+		return interned;
+	}
+	
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	// packed regions (see Refseq), as the number of regions and the pairs
+	private static void writeRegions(DataOutputStream out, int[] regions) throws IOException {
+		out.writeInt(regions.length / 2);
+		for (int region : regions) out.writeInt(region);
+	}
+	
+	private static int[] readRegions(MappedInput in) throws IOException {
+		int count = in.readInt();
+		if (count == 0) return Refseq.NO_REGIONS;
+		int[] regions = new int[count * 2];
+		for (int i=0; i<regions.length; i++) regions[i] = in.readInt();
+		return regions;
+	}
+	
+	private static void writeRefseqIds(DataOutputStream out, BioDB biodb, String[] refseq_ids) throws IOException {
+		out.writeInt(refseq_ids.length);
+		for (String refseq_id : refseq_ids) out.writeInt(biodb.refseq_db.get(refseq_id).ordinal);
+	}
+	
+	private static String[] readRefseqIds(MappedInput in, Refseq[] refseqs) throws IOException {
+		String[] refseq_ids = new String[in.readInt()];
+		for (int i=0; i<refseq_ids.length; i++) refseq_ids[i] = refseqs[in.readInt()].refseq_id;
+		return refseq_ids;
+	}
+	
+	private static void writeGenes(DataOutputStream out, Gene[] genes) throws IOException {
+		out.writeInt(genes.length);
+		for (Gene gene : genes) out.writeInt(gene.ordinal);
+	}
+	
+	private static Gene[] readGenes(MappedInput in, Gene[] all_genes) throws IOException {
+		Gene[] genes = new Gene[in.readInt()];
+		for (int i=0; i<genes.length; i++) genes[i] = all_genes[in.readInt()];
+		return genes;
+	}
+	
+	private static void writeSymbols(DataOutputStream out, HashMap<String, Gene> db) throws IOException {
+		out.writeInt(db.size());
+		for (Map.Entry<String, Gene> entry : db.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue().ordinal);
+		}
+	}
+	
+	private static void readSymbols(MappedInput in, Gene[] genes, HashMap<String, Gene> db) throws IOException {
+		int count = in.readInt();
+		for (int i=0; i<count; i++) {
+			String symbol = in.readString();
+			db.put(symbol, genes[in.readInt()]);
+		}
+	}
+	
+	private static void writeHomologs(DataOutputStream out, HashMap<Gene, Gene[]> db) throws IOException {
+		out.writeInt(db.size());
+		for (Map.Entry<Gene, Gene[]> entry : db.entrySet()) {
+			out.writeInt(entry.getKey().ordinal);
+			writeGenes(out, entry.getValue());
+		}
+	}
+	
+	private static void readHomologs(MappedInput in, Gene[] genes, HashMap<Gene, Gene[]> db) throws IOException {
+		int count = in.readInt();
+		for (int i=0; i<count; i++) {
+			Gene gene = genes[in.readInt()];
+			db.put(gene, readGenes(in, genes));
+		}
+	}
+	
+	/*
+	 * sequential reader over a file mapped in windows of up to WINDOW bytes.
+	 * a window is re-mapped from the current position when a read does not fit in its rest.
+	 */
+	static class MappedInput {
+		final FileChannel channel;
+		final long size;
+		long base;
+		MappedByteBuffer buffer;
+		
+		MappedInput(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			this.map(0);
+		}
+		
+		private void map(long position) throws IOException {
+			this.base = position;
+			this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, this.size - position));
+		}
+		
+		// buffer positioned at the next n bytes
+		MappedByteBuffer need(int n) throws IOException {
+			if (this.buffer.remaining() < n) {
+				this.map(this.base + this.buffer.position());
+				if (this.buffer.remaining() < n) throw new EOFException();
+			}
+			return this.buffer;
+		}
+		
+		int readInt() throws IOException {
+			return this.need(4).getInt();
+		}
+		
+		long readLong() throws IOException {
+			return this.need(8).getLong();
+		}
+		
+		boolean readBoolean() throws IOException {
+			return this.need(1).get() != 0;
+		}
+		
+		String readString() throws IOException {
+			int length = this.readInt();
+			if (length < 0) return null;
+			byte[] bytes = new byte[length];
+			this.need(length).get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -1,11 +1,10 @@
 package interactome.data;
 
-import interactome.Pair;
-
-import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Refseq {
 	public String refseq_id; // e.g., NM_******
+	public int ordinal = -1; // dense index in BioDB.all_refseqs
 	
 	public Gene gene;
 	public int length;
@@ -15,33 +14,65 @@ public class Refseq {
 	public boolean is_invalid; // lacking refLink entry
 
 	public short[] gc_percent;
-	public float[] mappability;
 
-	public ArrayList<Pair<Integer, Integer>> unmappable_regions;
-	
-	public boolean is_long_and_unmappable = false;
-	
-	public int mappable_position_count = 0;
-	public double mappability_sum = 0;
+	// self-matching regions (see BioDB.loadSelfMatching), of self_matching and of self_matching_direct,
+	// packed as {first, second, first, second, ...}, with both first and second increasing (see setUnmappableRegions).
+	// an n-bp read starting at i is not unique if first <= i and i+n < second for a region.
+	// per-sample mappabilities are kept in RefseqInput.
+	static final int[] NO_REGIONS = new int[0];
+	public int[] unmappable_regions = NO_REGIONS;
+	public int[] unmappable_regions_direct = NO_REGIONS;
 	
 	public Refseq(String refseq_id) {
 		this.refseq_id = refseq_id;
 		this.is_invalid = false;
-		this.unmappable_regions = new ArrayList<Pair<Integer,Integer>>();
 	}
 	
-	// number of mappable positions where n-bp read starting from there is uniquely mappable
-	public int mappable_position_count_for_specific_read_length(int n) {
+	// unmappable regions for a directional mode (0: count all, 1 or 2: directional)
+	public int[] unmappableRegions(int directional_mode) {
+		return directional_mode == 0 ? this.unmappable_regions : this.unmappable_regions_direct;
+	}
+	
+	/*
+	 * set the unmappable regions of a directional mode from regions (first << 32 | second) sorted in increasing order.
+	 * a region inside an earlier one (second not larger) is dropped, as every read it makes non-unique
+	 * is non-unique by the earlier one, so that both first and second of the kept regions increase.
+	 */
+	void setUnmappableRegions(int directional_mode, long[] regions) {
+		int[] packed = new int[regions.length * 2];
 		int count = 0;
-		for (int i=0; i<=length-n; i++) {
-			boolean is_mappable = true;
-			for (Pair<Integer, Integer> pair : unmappable_regions) {
-				if ((Integer)pair.first <= i && (i+n) < (Integer)pair.second) {
-					is_mappable = false;
-					break;
-				}
-			}
-			if (is_mappable) count++;
+		for (long region : regions) {
+			int first = (int)(region >> 32);
+			int second = (int)region;
+			if (count > 0 && second <= packed[count-1]) continue;
+			if (count > 0 && first == packed[count-2]) count -= 2; // inside this one
+			packed[count++] = first;
+			packed[count++] = second;
+		}
+		packed = count == 0 ? NO_REGIONS : Arrays.copyOf(packed, count);
+		
+		if (directional_mode == 0) this.unmappable_regions = packed;
+		else this.unmappable_regions_direct = packed;
+	}
+	
+	/*
+	 * number of mappable positions where n-bp read starting from there is uniquely mappable.
+	 * a region makes the starts [first, second-n-1] non-unique; as both first and second increase,
+	 * these intervals are counted in one pass, without the part overlapping the previous ones.
+	 */
+	public int mappable_position_count_for_specific_read_length(int n, int directional_mode) {
+		int[] unmappable_regions = this.unmappableRegions(directional_mode);
+		int last = length - n; // last start
+		if (last < 0) return 0;
+		
+		int count = last + 1;
+		int covered_end = -1; // starts up to covered_end are counted as non-unique
+		for (int r=0; r<unmappable_regions.length; r+=2) {
+			int start = Math.max(Math.max(unmappable_regions[r], 0), covered_end + 1);
+			int end = Math.min(unmappable_regions[r+1] - n - 1, last);
+			if (start > end) continue;
+			count -= end - start + 1;
+			covered_end = end;
 		}
 		return count;
 	}
@@ -0,0 +1,59 @@
+package interactome.data;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ * refseq_id -> refseq ordinal lookup on raw bytes.
+ * open addressing table with (hash, ordinal) slots at most half full,
+ * so reference names of alignment rows are resolved without creating Strings.
+ */
+public class RefseqDictionary {
+	private final byte[][] keys;
+	private final int[] hashes;
+	private final int[] ordinals;
+	private final int mask;
+	
+	public RefseqDictionary(Refseq[] refseqs) {
+		int size = 16;
+		while (size < refseqs.length * 2) size <<= 1;
+		this.keys = new byte[size][];
+		this.hashes = new int[size];
+		this.ordinals = new int[size];
+		this.mask = size - 1;
+		
+		for (Refseq refseq : refseqs) {
+			byte[] key = refseq.refseq_id.getBytes(StandardCharsets.ISO_8859_1);
+			int hash = hash(key, 0, key.length);
+			int slot = hash & this.mask;
+			while (this.keys[slot] != null) slot = (slot + 1) & this.mask;
+			this.keys[slot] = key;
+			this.hashes[slot] = hash;
+			this.ordinals[slot] = refseq.ordinal;
+		}
+	}
+	
+	// ordinal of the refseq whose id is buf[start, end), or -1 if unknown
+	public int lookup(byte[] buf, int start, int end) {
+		int hash = hash(buf, start, end);
+		int len = end - start;
+		for (int slot = hash & this.mask; this.keys[slot] != null; slot = (slot + 1) & this.mask) {
+			if (this.hashes[slot] != hash) continue;
+			byte[] key = this.keys[slot];
+			if (key.length != len) continue;
+			int i = 0;
+			while (i < len && key[i] == buf[start + i]) i++;
+			if (i == len) return this.ordinals[slot];
+		}
+		return -1;
+	}
+	
+	// FNV-1a
+	private static int hash(byte[] buf, int start, int end) {
+		int hash = 0x811c9dc5;
+		for (int i=start; i<end; i++) {
+			hash ^= buf[i] & 0xff;
+			hash *= 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,61 @@
+package interactome.input;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import interactome.Option;
+
+/*
+ * row-level reader of an alignment file (sam text or bam).
+ * rows are exposed as raw bytes, so that the loading pipeline can copy them into chunks as they are;
+ * createRecord() returns the AlignmentRecord type that interprets those bytes.
+ */
+public abstract class AlignmentReader implements Closeable {
+	/*
+	 * move to the next alignment row, skipping headers.
+	 * the row is available from rowBuffer(), rowStart() and rowLength() until the next call.
+	 * returns false at the end of input.
+	 */
+	public abstract boolean nextRow() throws IOException;
+	
+	public abstract byte[] rowBuffer();
+	public abstract int rowStart();
+	public abstract int rowLength();
+	
+	// offset of the read name of the current row in rowBuffer()
+	public abstract int nameStart();
+	
+	// end of the read name (or of a field containing it) of the current row
+	public abstract int nameEnd();
+	
+	public abstract AlignmentRecord createRecord();
+	
+	/*
+	 * open an alignment file as sam text, or as bam if specified by -b option.
+	 * "-" stands for stdin. stdin and named pipes are read in forward order through a bounded read-ahead buffer,
+	 * so an aligner can write into them while the input is loaded.
+	 */
+	public static AlignmentReader open(String file_name) throws IOException {
+		Option option = Option.getInstance();
+		long read_ahead_bytes = Long.valueOf(option.settings.get("input_read_ahead_mb")) << 20;
+		
+		InputStream in;
+		if (file_name.equals("-")) {
+			in = new ReadAheadInputStream(System.in, "stdin", read_ahead_bytes);
+		} else {
+			File file = new File(file_name);
+			in = new FileInputStream(file);
+			if (!file.isFile()) { // e.g., named pipe
+				in = new ReadAheadInputStream(in, file.getName(), read_ahead_bytes);
+			}
+		}
+		
+		if (option.input_bam) {
+			return new BamReader(in, option.threads);
+		}
+		return new SamReader(in);
+	}
+}
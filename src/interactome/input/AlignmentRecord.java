@@ -0,0 +1,96 @@
+package interactome.input;
+
+import java.nio.charset.StandardCharsets;
+
+import interactome.data.Refseq;
+
+/*
+ * a single alignment handed to the counting logic, backed by a sam text row (SamRecord)
+ * or by a binary bam record (BamRecord).
+ * records are reused: wrap() points the record to the next row without copying it.
+ */
+public abstract class AlignmentRecord {
+	// set the record directly on the given bytes, which must not be modified while the record is in use
+	abstract void wrap(byte[] src, int offset, int len);
+	
+	// bytes holding the read name, from nameStart() to nameEnd()
+	abstract byte[] buffer();
+	abstract int nameStart();
+	abstract int nameEnd();
+	
+	public abstract String readName();
+	
+	public abstract int flag();
+	
+	// false if the read has no reference (RNAME is '*')
+	public abstract boolean isMapped();
+	
+	// the reference refseq, or null if it is not contained in BioDB
+	public abstract Refseq refseq();
+	
+	// 0-order leftmost mapping position
+	public abstract int position();
+	
+	// false if CIGAR is '*'
+	public abstract boolean hasCigar();
+	
+	// match-length from CIGAR (M, D and N operations)
+	public abstract int matchLength();
+	
+	public abstract String sequence();
+	public abstract String quality();
+	
+	// length of a read name starting from start; with strip_suffix, the name is cut at the first '#' (e.g., "read#0/1" -> "read")
+	static int readNameLength(byte[] buf, int start, int end, boolean strip_suffix) {
+		for (int i=start; i<end; i++) {
+			if (buf[i] == '\t' || (strip_suffix && buf[i] == '#')) return i - start;
+		}
+		return end - start;
+	}
+	
+	/*
+	 * a read name copied out of a record, kept across rows to detect read-name group boundaries.
+	 */
+	public static class ReadName {
+		byte[] bytes = new byte[256];
+		int length = -1;
+		
+		public void set(AlignmentRecord record, boolean strip_suffix) {
+			this.set(record.buffer(), record.nameStart(), record.nameEnd(), strip_suffix);
+		}
+		
+		// set from raw bytes whose read name starts from start
+		public void set(byte[] buf, int start, int end, boolean strip_suffix) {
+			int len = readNameLength(buf, start, end, strip_suffix);
+			if (this.bytes.length < len) this.bytes = new byte[len * 2];
+			System.arraycopy(buf, start, this.bytes, 0, len);
+			this.length = len;
+		}
+		
+		public boolean matches(AlignmentRecord record, boolean strip_suffix) {
+			return this.matches(record.buffer(), record.nameStart(), record.nameEnd(), strip_suffix);
+		}
+		
+		// compare with raw bytes whose read name starts from start
+		public boolean matches(byte[] buf, int start, int end, boolean strip_suffix) {
+			int len = readNameLength(buf, start, end, strip_suffix);
+			if (this.length != len) return false;
+			for (int i=0; i<len; i++) {
+				if (buf[start + i] != this.bytes[i]) return false;
+			}
+			return true;
+		}
+		
+		public boolean matches(ReadName other) {
+			if (this.length != other.length) return false;
+			for (int i=0; i<this.length; i++) {
+				if (this.bytes[i] != other.bytes[i]) return false;
+			}
+			return true;
+		}
+		
+		public String toString() {
+			return this.length < 0 ? "" : new String(this.bytes, 0, this.length, StandardCharsets.ISO_8859_1);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package interactome.input;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import interactome.Logger;
+import interactome.data.BioDB;
+import interactome.data.Refseq;
+
+/*
+ * record reader for bam files.
+ * BGZF blocks are inflated in parallel by BgzfInputStream, and each record is exposed in place as raw bytes.
+ * reference names in the header are resolved to refseqs once, so records are matched by refID only.
+ */
+public class BamReader extends AlignmentReader {
+	InputStream in;
+	byte[] buffer = new byte[1 << 20];
+	int position = 0;
+	int limit = 0;
+	boolean eof = false;
+	
+	// the current record
+	int record_start = 0;
+	int record_length = 0;
+	
+	Refseq[] references; // refID -> refseq (null if not contained in BioDB)
+	
+	public BamReader(InputStream in, int threads) throws IOException {
+		this.in = new BgzfInputStream(in, threads);
+		this.readHeader();
+	}
+	
+	// check the magic, skip the header text and load the reference table
+	private void readHeader() throws IOException {
+		if (!this.ensure(4) || this.buffer[0] != 'B' || this.buffer[1] != 'A' || this.buffer[2] != 'M' || this.buffer[3] != 1) {
+			throw new IOException("not a bam file");
+		}
+		this.position += 4;
+		int l_text = this.nextInt();
+		if (!this.ensure(l_text)) throw new EOFException("truncated bam header");
+		this.position += l_text;
+		
+		BioDB biodb = BioDB.getInstance();
+		int n_ref = this.nextInt();
+		this.references = new Refseq[n_ref];
+		int known_count = 0;
+		for (int i=0; i<n_ref; i++) {
+			int l_name = this.nextInt();
+			if (!this.ensure(l_name + 4)) throw new EOFException("truncated bam header");
+			String name = new String(this.buffer, this.position, l_name-1, StandardCharsets.ISO_8859_1); // without NUL
+			this.position += l_name + 4; // l_ref is not used
+			this.references[i] = biodb.refseq_db.get(name);
+			if (this.references[i] != null) known_count++;
+		}
+		Logger.logf("%d of %d bam references are known refseqs.", known_count, n_ref);
+	}
+	
+	@Override
+	public boolean nextRow() throws IOException {
+		if (!this.ensure(4)) {
+			if (this.position < this.limit) throw new EOFException("truncated bam record");
+			return false;
+		}
+		int block_size = this.nextInt();
+		if (!this.ensure(block_size)) throw new EOFException("truncated bam record");
+		this.record_start = this.position;
+		this.record_length = block_size;
+		this.position += block_size;
+		return true;
+	}
+	
+	@Override
+	public byte[] rowBuffer() {
+		return this.buffer;
+	}
+	
+	@Override
+	public int rowStart() {
+		return this.record_start;
+	}
+	
+	@Override
+	public int rowLength() {
+		return this.record_length;
+	}
+	
+	@Override
+	public int nameStart() {
+		return this.record_start + BamRecord.READ_NAME;
+	}
+	
+	@Override
+	public int nameEnd() {
+		return this.nameStart() + (this.buffer[this.record_start + BamRecord.L_READ_NAME] & 0xff) - 1;
+	}
+	
+	@Override
+	public AlignmentRecord createRecord() {
+		return new BamRecord(this.references);
+	}
+	
+	private int nextInt() throws IOException {
+		if (!this.ensure(4)) throw new EOFException("truncated bam file");
+		int value = BgzfInputStream.readInt(this.buffer, this.position);
+		this.position += 4;
+		return value;
+	}
+	
+	// make at least n unread bytes available. returns false if the input ends before that.
+	private boolean ensure(int n) throws IOException {
+		while (this.limit - this.position < n) {
+			if (this.eof) return false;
+			this.fill();
+		}
+		return true;
+	}
+	
+	// move the unread bytes to the head of the buffer and read more
+	private void fill() throws IOException {
+		int remaining = this.limit - this.position;
+		if (remaining > 0 && this.position > 0) {
+			System.arraycopy(this.buffer, this.position, this.buffer, 0, remaining);
+		}
+		this.position = 0;
+		this.limit = remaining;
+		if (this.limit == this.buffer.length) {
+			// a record longer than the buffer
+			byte[] larger = new byte[this.buffer.length * 2];
+			System.arraycopy(this.buffer, 0, larger, 0, this.limit);
+			this.buffer = larger;
+		}
+		int n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+		if (n < 0) {
+			this.eof = true;
+		} else {
+			this.limit += n;
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+}
@@ -0,0 +1,147 @@
+package interactome.input;
+
+import java.nio.charset.StandardCharsets;
+
+import interactome.data.Refseq;
+
+/*
+ * a binary bam record (without its block_size prefix).
+ * fields are decoded from fixed offsets; the reference is resolved through the refID table of the bam header.
+ */
+public class BamRecord extends AlignmentRecord {
+	static final int REF_ID = 0;
+	static final int POS = 4;
+	static final int L_READ_NAME = 8;
+	static final int N_CIGAR_OP = 12;
+	static final int FLAG = 14;
+	static final int L_SEQ = 16;
+	static final int READ_NAME = 32;
+	
+	static final char[] BASES = "=ACMGRSVTWYHKDBN".toCharArray();
+	
+	Refseq[] references; // refID -> refseq (null if not contained in BioDB)
+	
+	byte[] data;
+	int offset = 0;
+	int length = 0;
+	
+	BamRecord(Refseq[] references) {
+		this.references = references;
+	}
+	
+	@Override
+	void wrap(byte[] src, int offset, int len) {
+		if (len < READ_NAME) throw new IllegalStateException("bam record is too short: " + len + " bytes");
+		this.data = src;
+		this.offset = offset;
+		this.length = len;
+	}
+	
+	@Override
+	byte[] buffer() {
+		return this.data;
+	}
+	
+	@Override
+	int nameStart() {
+		return this.offset + READ_NAME;
+	}
+	
+	// l_read_name includes the trailing NUL
+	@Override
+	int nameEnd() {
+		return this.nameStart() + (this.data[this.offset + L_READ_NAME] & 0xff) - 1;
+	}
+	
+	@Override
+	public String readName() {
+		return new String(this.data, this.nameStart(), this.nameEnd() - this.nameStart(), StandardCharsets.ISO_8859_1);
+	}
+	
+	@Override
+	public int flag() {
+		return this.uint16(FLAG);
+	}
+	
+	@Override
+	public boolean isMapped() {
+		return this.int32(REF_ID) >= 0;
+	}
+	
+	@Override
+	public Refseq refseq() {
+		int ref_id = this.int32(REF_ID);
+		if (ref_id < 0 || ref_id >= this.references.length) return null;
+		return this.references[ref_id];
+	}
+	
+	@Override
+	public int position() {
+		return this.int32(POS); // already 0-order
+	}
+	
+	@Override
+	public boolean hasCigar() {
+		return this.uint16(N_CIGAR_OP) > 0;
+	}
+	
+	// each CIGAR operation is op_len << 4 | op, where op is the index in "MIDNSHP=X"
+	@Override
+	public int matchLength() {
+		int match_length = 0;
+		int cigar = this.cigarOffset();
+		int n_cigar_op = this.uint16(N_CIGAR_OP);
+		for (int i=0; i<n_cigar_op; i++) {
+			int value = this.int32(cigar + i*4);
+			int op = value & 0xf;
+			if (op == 0 || op == 2 || op == 3) match_length += value >>> 4;
+		}
+		return match_length;
+	}
+	
+	@Override
+	public String sequence() {
+		int l_seq = this.int32(L_SEQ);
+		if (l_seq == 0) return "*";
+		int seq = this.offset + this.seqOffset();
+		char[] bases = new char[l_seq];
+		for (int i=0; i<l_seq; i++) {
+			int packed = this.data[seq + i/2] & 0xff;
+			bases[i] = BASES[(i & 1) == 0 ? packed >>> 4 : packed & 0xf];
+		}
+		return new String(bases);
+	}
+	
+	@Override
+	public String quality() {
+		int l_seq = this.int32(L_SEQ);
+		int qual = this.offset + this.seqOffset() + (l_seq+1)/2;
+		if (l_seq == 0 || (this.data[qual] & 0xff) == 0xff) return "*";
+		char[] phred = new char[l_seq];
+		for (int i=0; i<l_seq; i++) {
+			phred[i] = (char)((this.data[qual + i] & 0xff) + 33);
+		}
+		return new String(phred);
+	}
+	
+	private int cigarOffset() {
+		return READ_NAME + (this.data[this.offset + L_READ_NAME] & 0xff);
+	}
+	
+	private int seqOffset() {
+		return this.cigarOffset() + this.uint16(N_CIGAR_OP) * 4;
+	}
+	
+	private int int32(int field) {
+		return BgzfInputStream.readInt(this.data, this.offset + field);
+	}
+	
+	private int uint16(int field) {
+		int i = this.offset + field;
+		return (this.data[i] & 0xff) | (this.data[i+1] & 0xff) << 8;
+	}
+	
+	public String toString() {
+		return this.readName();
+	}
+}
@@ -0,0 +1,180 @@
+package interactome.input;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * decompressed stream of a BGZF file (the block-compressed gzip used by bam).
+ * compressed blocks are read sequentially, and inflated ahead on a pool of inflater threads;
+ * the inflated blocks are returned in the file order.
+ */
+public class BgzfInputStream extends InputStream {
+	static final int MAX_BLOCK_SIZE = 65536;
+	
+	InputStream in;
+	ExecutorService inflaters;
+	ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	int read_ahead;
+	boolean in_eof = false;
+	
+	// the current inflated block
+	byte[] block = new byte[0];
+	int position = 0;
+	
+	public BgzfInputStream(InputStream in, int threads) {
+		this.in = in;
+		this.read_ahead = Math.max(1, threads) * 4;
+		this.inflaters = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "bgzf-inflater-" + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (!this.ensureBlock()) return -1;
+		return this.block[this.position++] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!this.ensureBlock()) return -1;
+		int n = Math.min(len, this.block.length - this.position);
+		System.arraycopy(this.block, this.position, b, off, n);
+		this.position += n;
+		return n;
+	}
+	
+	// move to the next non-empty block if the current one was consumed. returns false at the end of input.
+	private boolean ensureBlock() throws IOException {
+		while (this.position == this.block.length) {
+			// keep the inflater threads busy
+			while (!this.in_eof && this.pending.size() < this.read_ahead) {
+				final byte[] compressed = this.readCompressedBlock();
+				if (compressed == null) {
+					this.in_eof = true;
+					break;
+				}
+				this.pending.add(this.inflaters.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						return inflate(compressed);
+					}
+				}));
+			}
+			
+			Future<byte[]> next = this.pending.poll();
+			if (next == null) return false;
+			try {
+				this.block = next.get();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+				throw new IOException(e.getCause());
+			}
+			this.position = 0;
+		}
+		return true;
+	}
+	
+	/*
+	 * read a whole compressed block (header, deflated data, CRC32 and ISIZE).
+	 * returns null at the end of input.
+	 */
+	private byte[] readCompressedBlock() throws IOException {
+		byte[] header = new byte[12];
+		int n = readFully(header, 0, header.length);
+		if (n == 0) return null;
+		if (n < header.length) throw new EOFException("truncated BGZF block header");
+		if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[2] & 0xff) != 8 || (header[3] & 4) == 0) {
+			throw new IOException("not a BGZF file");
+		}
+		
+		// the BC subfield of the extra field holds the total block size - 1
+		int xlen = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+		byte[] extra = new byte[xlen];
+		if (readFully(extra, 0, xlen) < xlen) throw new EOFException("truncated BGZF block header");
+		int block_size = -1;
+		for (int i=0; i+4<=xlen; ) {
+			int slen = (extra[i+2] & 0xff) | (extra[i+3] & 0xff) << 8;
+			if (extra[i] == 66 && extra[i+1] == 67 && slen == 2 && i+6<=xlen) {
+				block_size = ((extra[i+4] & 0xff) | (extra[i+5] & 0xff) << 8) + 1;
+			}
+			i += 4 + slen;
+		}
+		if (block_size < 0) throw new IOException("BGZF block size is missing");
+		
+		int remaining = block_size - header.length - xlen;
+		if (remaining < 8) throw new IOException("invalid BGZF block size: " + block_size);
+		byte[] compressed = new byte[remaining];
+		if (readFully(compressed, 0, remaining) < remaining) throw new EOFException("truncated BGZF block");
+		return compressed;
+	}
+	
+	// inflate deflated data followed by CRC32 and ISIZE
+	static byte[] inflate(byte[] compressed) throws IOException {
+		int n = compressed.length;
+		int crc = readInt(compressed, n-8);
+		int isize = readInt(compressed, n-4);
+		if (isize < 0 || isize > MAX_BLOCK_SIZE) throw new IOException("invalid BGZF inflated size: " + isize);
+		
+		byte[] inflated = new byte[isize];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed, 0, n-8);
+			int length = 0;
+			while (length < isize) {
+				int m = inflater.inflate(inflated, length, isize - length);
+				if (m == 0 && (inflater.finished() || inflater.needsInput())) break;
+				length += m;
+			}
+			if (length != isize) throw new IOException("corrupted BGZF block");
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+		
+		CRC32 crc32 = new CRC32();
+		crc32.update(inflated, 0, isize);
+		if ((int)crc32.getValue() != crc) throw new IOException("BGZF block CRC mismatch");
+		return inflated;
+	}
+	
+	static int readInt(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i+1] & 0xff) << 8 | (b[i+2] & 0xff) << 16 | (b[i+3] & 0xff) << 24;
+	}
+	
+	// returns the number of bytes read, which is less than len only at the end of input
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = this.in.read(b, off + total, len - total);
+			if (n < 0) break;
+			total += n;
+		}
+		return total;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.inflaters.shutdownNow();
+		this.in.close();
+	}
+}
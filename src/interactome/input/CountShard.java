@@ -0,0 +1,42 @@
+package interactome.input;
+
+import interactome.data.Refseq;
+
+/*
+ * read counts collected by a single loading thread.
+ * RefseqInputs are allocated only for refseqs the thread actually hit,
+ * and all shards are folded into Input.refseq_inputs after loading.
+ */
+class CountShard {
+	RefseqInput[] refseq_inputs; // indexed by Refseq.ordinal
+	long[] match_length_distribution;
+	
+	CountShard(int refseq_count, int match_length_limit) {
+		this.refseq_inputs = new RefseqInput[refseq_count];
+		this.match_length_distribution = new long[match_length_limit];
+	}
+	
+	RefseqInput get(Refseq refseq) {
+		RefseqInput entry = this.refseq_inputs[refseq.ordinal];
+		if (entry == null) {
+			entry = new RefseqInput(refseq);
+			this.refseq_inputs[refseq.ordinal] = entry;
+		}
+		return entry;
+	}
+	
+	void mergeInto(Input input) {
+		for (RefseqInput shard : this.refseq_inputs) {
+			if (shard == null) continue;
+			RefseqInput entry = input.refseq_inputs[shard.refseq.ordinal];
+			
+			// coverage events are summed as they are, and accumulated once after all shards are merged
+			entry.rawCount += shard.rawCount;
+			entry.starting_counts.addAll(shard.starting_counts);
+			entry.overlap_counts.addAll(shard.overlap_counts);
+		}
+		for (int i=0; i<this.match_length_distribution.length; i++) {
+			input.match_length_distribution[i] += this.match_length_distribution[i];
+		}
+	}
+}
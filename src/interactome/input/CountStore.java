@@ -0,0 +1,217 @@
+package interactome.input;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * per-position counts of a refseq which adapt to the number of observed positions.
+ *   absent: no position was counted (no array is allocated).
+ *   sparse: (position, count) pairs packed into longs; new pairs are appended and
+ *           sorted/merged when the buffer is full.
+ *   dense:  int[length], used once sparse pairs would cost comparable memory.
+ *   mapped: int[length] region of a CoverageFile, if the counts are moved out of the heap at seal().
+ * counts are added while loading, and read by get() after seal().
+ * with cumulative seal, the added values are treated as +1/-1 events and get(i) returns their prefix sum,
+ * and the depth histogram of the sums is made in the same pass.
+ */
+public class CountStore {
+	static final int INITIAL_CAPACITY = 8;
+	
+	final int length;
+	
+	// sparse state
+	long[] pairs = null;
+	int pair_count = 0;
+	int sorted_count = 0; // pairs[0, sorted_count) are sorted by position with unique positions
+	
+	// dense state
+	int[] dense = null;
+	
+	// mapped state
+	CoverageFile mapped = null;
+	long mapped_offset = 0;
+	
+	boolean cumulative = false;
+	CoverageHistogram histogram = null; // made by cumulative seal
+	
+	public CountStore(int length) {
+		this.length = length;
+	}
+	
+	public boolean isEmpty() {
+		return this.dense == null && this.pair_count == 0 && this.mapped == null;
+	}
+	
+	public void add(int position, int count) {
+		if (position < 0 || position >= this.length) throw new ArrayIndexOutOfBoundsException(position);
+		if (this.dense != null) {
+			this.dense[position] += count;
+			return;
+		}
+		if (this.pairs == null) {
+			this.pairs = new long[INITIAL_CAPACITY];
+		} else if (this.pair_count == this.pairs.length) {
+			this.compact();
+			if (this.dense != null) {
+				this.dense[position] += count;
+				return;
+			}
+			if (this.pair_count * 2 > this.pairs.length) {
+				this.pairs = Arrays.copyOf(this.pairs, this.pairs.length * 2);
+			}
+		}
+		this.pairs[this.pair_count++] = pack(position, count);
+	}
+	
+	// add all counts of another store, whose arrays may be taken over
+	void addAll(CountStore other) {
+		if (other.isEmpty()) return;
+		if (this.isEmpty()) {
+			this.pairs = other.pairs;
+			this.pair_count = other.pair_count;
+			this.sorted_count = other.sorted_count;
+			this.dense = other.dense;
+			other.pairs = null;
+			other.pair_count = 0;
+			other.sorted_count = 0;
+			other.dense = null;
+			return;
+		}
+		if (other.dense != null) {
+			if (this.dense == null) this.promote();
+			for (int i=0; i<this.length; i++) this.dense[i] += other.dense[i];
+		} else {
+			for (int i=0; i<other.pair_count; i++) {
+				this.add(position(other.pairs[i]), count(other.pairs[i]));
+			}
+		}
+	}
+	
+	/*
+	 * finish loading. with cumulative, counts are replaced by their prefix sums, which are counted into histogram.
+	 * if file is given, the counts are moved into it and the heap arrays are released.
+	 */
+	void seal(boolean cumulative, CoverageFile file) throws IOException {
+		if (this.dense == null) {
+			this.compact();
+		}
+		if (cumulative) {
+			this.histogram = new CoverageHistogram(this.length);
+			if (this.dense != null) {
+				if (this.length > 0) this.histogram.add(this.dense[0], 1);
+				for (int i=1; i<this.length; i++) {
+					this.dense[i] += this.dense[i-1];
+					this.histogram.add(this.dense[i], 1);
+				}
+			} else {
+				// runs of equal sums from each pair to the next (zero before the first pair)
+				long sum = 0;
+				this.histogram.add(0, this.pair_count > 0 ? position(this.pairs[0]) : this.length);
+				for (int i=0; i<this.pair_count; i++) {
+					sum += count(this.pairs[i]);
+					this.pairs[i] = pack(position(this.pairs[i]), (int)sum);
+					int end = i+1 < this.pair_count ? position(this.pairs[i+1]) : this.length;
+					this.histogram.add((int)sum, end - position(this.pairs[i]));
+				}
+			}
+			this.histogram.finish();
+		}
+		if (this.pairs != null && this.pairs.length > this.pair_count) {
+			this.pairs = Arrays.copyOf(this.pairs, this.pair_count);
+		}
+		this.cumulative = cumulative;
+		
+		if (file != null && !this.isEmpty()) {
+			long offset = file.allocate(this.length);
+			if (this.dense != null) {
+				file.put(offset, this.dense);
+			} else {
+				// expand the sparse pairs (runs of equal counts, if cumulative)
+				for (int i=0; i<this.pair_count; i++) {
+					int p = position(this.pairs[i]);
+					int end = p+1;
+					if (cumulative) end = i+1 < this.pair_count ? position(this.pairs[i+1]) : this.length;
+					for (int j=p; j<end; j++) file.put(offset + j, count(this.pairs[i]));
+				}
+			}
+			this.mapped = file;
+			this.mapped_offset = offset;
+			this.dense = null;
+			this.pairs = null;
+			this.pair_count = 0;
+			this.sorted_count = 0;
+		}
+	}
+	
+	public long get(int position) {
+		if (this.mapped != null) {
+			if (position < 0 || position >= this.length) throw new ArrayIndexOutOfBoundsException(position);
+			return this.mapped.get(this.mapped_offset + position);
+		}
+		if (this.dense != null) return this.dense[position];
+		if (this.pair_count == 0) return 0;
+		
+		// the last pair at or before the position (cumulative), or the pair at the position
+		int lo = 0, hi = this.pair_count - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int p = position(this.pairs[mid]);
+			if (p <= position) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if (found < 0) return 0;
+		if (!this.cumulative && position(this.pairs[found]) != position) return 0;
+		return count(this.pairs[found]);
+	}
+	
+	// sort and merge the appended pairs; promote to dense if it pays off
+	private void compact() {
+		if (this.pairs == null) return;
+		if (this.sorted_count < this.pair_count) {
+			Arrays.sort(this.pairs, 0, this.pair_count);
+			int n = 0;
+			for (int i=0; i<this.pair_count; i++) {
+				int p = position(this.pairs[i]);
+				if (n > 0 && position(this.pairs[n-1]) == p) {
+					this.pairs[n-1] = pack(p, count(this.pairs[n-1]) + count(this.pairs[i]));
+				} else {
+					this.pairs[n++] = this.pairs[i];
+				}
+			}
+			this.pair_count = n;
+			this.sorted_count = n;
+		}
+		// a pair takes 8 bytes, a dense position 4 bytes
+		if ((long)this.pair_count * 4 > this.length) {
+			this.promote();
+		}
+	}
+	
+	private void promote() {
+		int[] dense = new int[this.length];
+		for (int i=0; i<this.pair_count; i++) {
+			dense[position(this.pairs[i])] += count(this.pairs[i]);
+		}
+		this.dense = dense;
+		this.pairs = null;
+		this.pair_count = 0;
+		this.sorted_count = 0;
+	}
+	
+	// positions are non-negative, so packed pairs sort by position
+	private static long pack(int position, int count) {
+		return (long)position << 32 | (count & 0xffffffffL);
+	}
+	
+	private static int position(long pair) {
+		return (int)(pair >>> 32);
+	}
+	
+	private static int count(long pair) {
+		return (int)pair;
+	}
+}
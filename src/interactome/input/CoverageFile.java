@@ -0,0 +1,89 @@
+package interactome.input;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/*
+ * memory-mapped file holding per-position counts out of the java heap.
+ * the file is mapped in segments; each count array is placed in a single segment,
+ * and addressed by the offset returned from allocate().
+ * the file is temporary and removed by close() once the counts are no longer used
+ * (and when the jvm exits, if it was not closed).
+ */
+public class CoverageFile {
+	static final int SEGMENT_INTS = 1 << 28; // 1GB per segment
+	
+	File file;
+	RandomAccessFile raf;
+	FileChannel channel;
+	ArrayList<IntBuffer> segments = new ArrayList<IntBuffer>();
+	int segment_used = SEGMENT_INTS; // ints used in the last segment
+	
+	public CoverageFile(String directory) throws IOException {
+		this.file = File.createTempFile("coverage", ".bin", new File(directory));
+		this.file.deleteOnExit();
+		this.raf = new RandomAccessFile(this.file, "rw");
+		this.channel = this.raf.getChannel();
+	}
+	
+	/*
+	 * allocate a zero-filled region of length ints and return its offset.
+	 */
+	public synchronized long allocate(int length) throws IOException {
+		if (length > SEGMENT_INTS) throw new IOException("too long count array: " + length);
+		if (SEGMENT_INTS - this.segment_used < length) {
+			long position = (long)this.segments.size() * SEGMENT_INTS * 4;
+			IntBuffer segment = this.channel.map(FileChannel.MapMode.READ_WRITE, position, (long)SEGMENT_INTS * 4)
+				.order(ByteOrder.nativeOrder()).asIntBuffer();
+			this.segments.add(segment);
+			this.segment_used = 0;
+		}
+		long offset = (long)(this.segments.size()-1) * SEGMENT_INTS + this.segment_used;
+		this.segment_used += length;
+		return offset;
+	}
+	
+	public int get(long offset) {
+		return this.segments.get((int)(offset / SEGMENT_INTS)).get((int)(offset % SEGMENT_INTS));
+	}
+	
+	public void put(long offset, int value) {
+		this.segments.get((int)(offset / SEGMENT_INTS)).put((int)(offset % SEGMENT_INTS), value);
+	}
+	
+	// copy values into a region
+	public void put(long offset, int[] values) {
+		IntBuffer segment = this.segments.get((int)(offset / SEGMENT_INTS)).duplicate();
+		segment.position((int)(offset % SEGMENT_INTS));
+		segment.put(values);
+	}
+	
+	public long size() {
+		return ((long)(this.segments.size()-1) * SEGMENT_INTS + this.segment_used) * 4;
+	}
+	
+	/*
+	 * release the file: the counts must not be read after this.
+	 * the file is not truncated, because reading a mapped page beyond the end of the file kills the jvm.
+	 * it is only unlinked; its disk space is freed when the dropped segments are garbage-collected (unmapped).
+	 */
+	public synchronized void close() {
+		if (this.channel == null) return;
+		this.segments.clear();
+		this.segment_used = SEGMENT_INTS;
+		try {
+			this.channel.close();
+			this.raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.channel = null;
+		this.raf = null;
+		this.file.delete();
+	}
+}
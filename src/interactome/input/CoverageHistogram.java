@@ -0,0 +1,85 @@
+package interactome.input;
+
+import java.util.Arrays;
+
+/*
+ * depth histogram of the overlap counts of a refseq, made while the counts are accumulated (see CountStore.seal),
+ * so that coverage queries of any depth do not read the counts again.
+ * depths up to DENSE_DEPTH are counted in an array (trimmed to the largest depth seen); larger depths are kept
+ * as their distinct values, sorted, with the number of positions at or above each.
+ */
+class CoverageHistogram {
+	static final int DENSE_DEPTH = 255;
+	
+	final int length;
+	int[] at_least = new int[DENSE_DEPTH + 2]; // at_least[d]: positions of depth >= d (positions of depth d until finish)
+	int max_depth = 0; // largest depth counted in at_least
+	long[] high = null; // depth << 32 | positions, of depths above DENSE_DEPTH (until finish)
+	int high_count = 0;
+	int[] high_depths = null; // distinct depths above DENSE_DEPTH, ascending
+	int[] high_at_least = null; // positions of depth >= high_depths[k]
+	
+	CoverageHistogram(int length) {
+		this.length = length;
+	}
+	
+	// count positions of a depth
+	void add(int depth, int positions) {
+		if (positions <= 0) return;
+		if (depth <= DENSE_DEPTH) {
+			depth = Math.max(depth, 0);
+			this.at_least[depth] += positions;
+			this.max_depth = Math.max(this.max_depth, depth);
+			return;
+		}
+		if (this.high == null) {
+			this.high = new long[16];
+		} else if (this.high_count == this.high.length) {
+			this.high = Arrays.copyOf(this.high, this.high_count * 2);
+		}
+		this.high[this.high_count++] = (long)depth << 32 | positions;
+	}
+	
+	// turn the counts into the numbers of positions at or above each depth
+	void finish() {
+		int high_total = 0;
+		if (this.high_count > 0) {
+			Arrays.sort(this.high, 0, this.high_count);
+			int n = 0;
+			for (int i=0; i<this.high_count; i++) {
+				int depth = (int)(this.high[i] >>> 32);
+				if (n > 0 && (int)(this.high[n-1] >>> 32) == depth) {
+					this.high[n-1] += (int)this.high[i];
+				} else {
+					this.high[n++] = this.high[i];
+				}
+			}
+			this.high_depths = new int[n];
+			this.high_at_least = new int[n];
+			for (int k=n-1; k>=0; k--) {
+				high_total += (int)this.high[k];
+				this.high_depths[k] = (int)(this.high[k] >>> 32);
+				this.high_at_least[k] = high_total;
+			}
+			this.high = null;
+			this.high_count = 0;
+			this.max_depth = DENSE_DEPTH;
+		}
+		
+		this.at_least = Arrays.copyOf(this.at_least, this.max_depth + 2);
+		this.at_least[this.max_depth + 1] = high_total;
+		for (int d=this.max_depth; d>=0; d--) this.at_least[d] += this.at_least[d+1];
+	}
+	
+	// number of positions of depth >= depth
+	int positions(int depth) {
+		if (depth <= 0) return this.at_least[0];
+		if (depth < this.at_least.length) return this.at_least[depth];
+		if (this.high_depths == null) return 0;
+		
+		// the first distinct depth >= depth
+		int k = Arrays.binarySearch(this.high_depths, depth);
+		if (k < 0) k = -k - 1;
+		return k < this.high_depths.length ? this.high_at_least[k] : 0;
+	}
+}
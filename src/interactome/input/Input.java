@@ -1,14 +1,21 @@
 package interactome.input;
 
+import interactome.Logger;
+import interactome.Option;
 import interactome.data.BioDB;
 import interactome.data.Gene;
 import interactome.data.Refseq;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 public abstract class Input {
-	public HashMap<String, RefseqInput> refseq_inputs;
+	public RefseqInput[] refseq_inputs; // indexed by Refseq.ordinal (null for invalid refseqs)
 	public HashMap<String, GeneInput> gene_inputs;
+	public GeneInput[] gene_input_array; // indexed by Gene.ordinal
+	
+	CoverageFile coverage_file = null; // with coverage_store=mmap
 	
 	// statistics of match-length
 	public long[] match_length_distribution = new long[1001];
@@ -16,22 +23,56 @@ public abstract class Input {
 	public Input() {
 		BioDB biodb = BioDB.getInstance();
 		
-		refseq_inputs = new HashMap<String, RefseqInput>();
-		for (String refseq_id : biodb.all_refseq_ids) {
-			Refseq refseq = biodb.refseq_db.get(refseq_id);
+		refseq_inputs = new RefseqInput[biodb.all_refseqs.length];
+		for (Refseq refseq : biodb.all_refseqs) {
 			if (!refseq.is_invalid)
-				refseq_inputs.put(refseq_id, new RefseqInput(refseq));
+				refseq_inputs[refseq.ordinal] = new RefseqInput(refseq);
 		}
 		
 		gene_inputs = new HashMap<String, GeneInput>();
+		gene_input_array = new GeneInput[biodb.all_genes.length];
 		for (String entrez_id : biodb.all_entrez_ids) {
 			Gene gene = biodb.gene_db.get(entrez_id);
-			gene_inputs.put(entrez_id, new GeneInput(gene));
+			gene_input_array[gene.ordinal] = new GeneInput(gene);
+			gene_inputs.put(entrez_id, gene_input_array[gene.ordinal]);
 		}
 		
 		for (int i=0; i<match_length_distribution.length; i++) match_length_distribution[i] = 0;
 	}
 	
+	// inputs of all valid refseqs in the ordinal order
+	public ArrayList<RefseqInput> validRefseqInputs() {
+		ArrayList<RefseqInput> inputs = new ArrayList<RefseqInput>();
+		for (RefseqInput rinput : refseq_inputs) {
+			if (rinput != null) inputs.add(rinput);
+		}
+		return inputs;
+	}
+	
+	// materialize overlap_counts after all reads are counted.
+	// with coverage_store=mmap, the count arrays are moved into a memory-mapped file in the output directory.
+	protected void accumulateCoverage() throws IOException {
+		Option option = Option.getInstance();
+		CoverageFile file = null;
+		if (option.settings.get("coverage_store").equals("mmap")) {
+			file = this.coverage_file = new CoverageFile(option.output_path);
+		}
+		for (RefseqInput rinput : refseq_inputs) {
+			if (rinput != null) rinput.accumulateCoverage(file);
+		}
+		if (file != null) {
+			Logger.logf("count arrays are mapped to %s (%d MB).", file.file.getPath(), file.size() >> 20);
+		}
+	}
+	
+	// remove the memory-mapped count file (counts are not read after this)
+	public void close() {
+		if (this.coverage_file != null) {
+			this.coverage_file.close();
+			this.coverage_file = null;
+		}
+	}
+	
 	// abstract method for loading sequence files.
 	public abstract boolean loadFile();	
 }
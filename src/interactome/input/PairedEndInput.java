@@ -1,13 +1,13 @@
 package interactome.input;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -21,6 +21,9 @@ public class PairedEndInput extends Input {
 	BioDB biodb;
 	Option option;
 	
+	// read-name groups per chunk handed to a loading thread
+	final int CHUNK_GROUPS = 16384;
+	
 	@Override
 	public boolean loadFile() {
 		this.option = Option.getInstance();
@@ -32,13 +35,12 @@ public class PairedEndInput extends Input {
 		
 		Logger.logf("\nstart loading RNA-seq file (paired-ended)");
 		try {
-			String samname_1 = option.input_prefix_paired + "_1.sam";
-			String samname_2 = option.input_prefix_paired + "_2.sam";
+			String extension = option.input_bam ? ".bam" : ".sam";
+			String samname_1 = option.input_prefix_paired + "_1" + extension;
+			String samname_2 = option.input_prefix_paired + "_2" + extension;
 			
-			FileReader fr_1 = new FileReader(samname_1);
-			FileReader fr_2 = new FileReader(samname_2);
-			BufferedReader br_1 = new BufferedReader(fr_1);
-			BufferedReader br_2 = new BufferedReader(fr_2);
+			AlignmentReader reader_1 = AlignmentReader.open(samname_1);
+			AlignmentReader reader_2 = AlignmentReader.open(samname_2);
 			
 			// prepare writer for cancer/stroma.fastq if specified
 			FileWriter fw_cancer_1 = null;
@@ -62,195 +64,32 @@ public class PairedEndInput extends Input {
 				bw_stroma_2 = new BufferedWriter(fw_stroma_2);
 			}
 			
-			// next row data
-			String[] next_1, next_2;
-			
-			// skip header lines
-			while (true) {
-				next_1 = br_1.readLine().split("\t");
-				if (next_1[0].charAt(0) != '@') break;
-			}
-			while (true) {
-				next_2 = br_2.readLine().split("\t");
-				if (next_2[0].charAt(0) != '@') break;
+			// move to the first rows (headers are skipped)
+			boolean has_row_1 = reader_1.nextRow();
+			boolean has_row_2 = reader_2.nextRow();
+			if (!has_row_1 || !has_row_2) {
+				Logger.errorf("no alignment row in %s.", !has_row_1 ? samname_1 : samname_2);
+				reader_1.close();
+				reader_2.close();
+				return false;
 			}
 			
-			ArrayList<String[]> data_1 = new ArrayList<String[]>();
-			ArrayList<String[]> data_2 = new ArrayList<String[]>();
+			// load and classify read-name groups in parallel
+			ChunkReader chunk_reader = new ChunkReader(reader_1, reader_2,
+				new BufferedWriter[]{ bw_cancer_1, bw_cancer_2, bw_stroma_1, bw_stroma_2 });
+			List<LoadWorker> workers = chunk_reader.run(option.threads);
+			i = chunk_reader.group_count - 1;
 			
 			// multiple-multiple hits are stored
 			ArrayList<DetectedData> reservation = new ArrayList<PairedEndInput.DetectedData>();
 			long[] length_stat = new long[20000];
 			for (int j=0; j<length_stat.length; j++) length_stat[j] = 0;
-			
-			String former_read_name = "";
-			for (i=0; ; i++) {
-				if (i%1_000_000 == 0) {
-					Logger.logf("processed %d reads.", i);
-				}
-				
-				data_1.clear();
-				data_2.clear();
-				boolean end = false;
-				
-				String read_name = next_1[0].split("#")[0];
-				if (read_name.equals(former_read_name)) break;
-				former_read_name = read_name;
-				Set<Refseq> found_refseqs = new HashSet<Refseq>();
-				
-				// accept sam entries appropriate for the current directional mode
-				// 2nd column of sam file means...
-				//     0:  forward mapping
-				//     16: reverse mapping
-				//     4:  not mapped
-				
-				// load valid rows from [input 1]
-				while (true) {
-					int map_flag = Integer.valueOf(next_1[1]);
-					if (option.directional_mode == 0 ||
-						(option.directional_mode == 1 && (map_flag & 16) == 0) ||
-						(option.directional_mode == 2 && (map_flag & 16) != 0)) {
-						Refseq refseq = biodb.refseq_db.get(next_1[2]);
-						if (refseq != null && !refseq.is_invalid && !next_1[5].equals("*")) {
-							found_refseqs.add(refseq);
-							data_1.add(next_1);
-						}
-					}
-					
-					String line = br_1.readLine();
-					if (line == null || line.charAt(0) == '#') {
-						end = true;
-						break;
-					}
-					next_1 = line.split("\t");
-					if (!next_1[0].split("#")[0].equals(read_name)) {
-						break;
-					}
-				}
-				// load valid rows from [input 2]
-				while (true) {
-					int map_flag = Integer.valueOf(next_2[1]);
-					if (option.directional_mode == 0 ||
-						(option.directional_mode == 1 && (map_flag & 16) != 0) ||
-						(option.directional_mode == 2 && (map_flag & 16) == 0)) {
-						Refseq refseq = biodb.refseq_db.get(next_2[2]);
-						if (refseq != null && !refseq.is_invalid && !next_2[5].equals("*")) {
-							found_refseqs.add(refseq);
-							data_2.add(next_2);
-						}
-					}
-					
-					String line = br_2.readLine();
-					if (line == null || line.charAt(0) == '#') { // for aligners (bowtie, etc.) generating reporting comments starting from '#' at the end of inputs
-						end = true;
-						break;
-					}
-					next_2 = line.split("\t");
-					if (!next_2[0].split("#")[0].equals(read_name)) {
-						break;
-					}
-				}
-				
-				if (data_1.size() == 0 || data_2.size() == 0) continue;
-				this.match_length_distribution[calculateMatchLength(data_1.get(0)[5])]++;
-				this.match_length_distribution[calculateMatchLength(data_2.get(0)[5])]++;
-				
-				// check unique-gene-hit condition
-				Gene gene_1 = biodb.refseq_db.get(data_1.get(0)[2]).gene;
-				Gene gene_2 = biodb.refseq_db.get(data_2.get(0)[2]).gene;
-				boolean multiple_gene_hit = false;
-				for (int j=1; j<data_1.size(); j++) {
-					Gene gene_j = biodb.refseq_db.get(data_1.get(j)[2]).gene;
-					if (gene_1 != gene_j) {
-						multiple_gene_hit = true;
-						break;
-					}
-				}
-				for (int j=1; j<data_2.size(); j++) {
-					Gene gene_j = biodb.refseq_db.get(data_2.get(j)[2]).gene;
-					if (gene_2 != gene_j) {
-						multiple_gene_hit = true;
-						break;
-					}
-				}
-				if (multiple_gene_hit) continue;
-				
-				// check the gene correspondence among the pair
-				if (gene_1 != gene_2) continue;
-				
-				// dump cancer/stromal fastq (if user specified)
-				if (option.output_cancer_fastq && gene_1.tax_id.equals(option.settings.get("cancer_taxonomy"))) {
-					bw_cancer_1.write("@" + data_1.get(0)[0] + "\n");
-					bw_cancer_1.write(data_1.get(0)[9] + "\n");
-					bw_cancer_1.write("+\n");
-					bw_cancer_1.write(data_1.get(0)[10] + "\n");
-					bw_cancer_2.write("@" + data_2.get(0)[0] + "\n");
-					bw_cancer_2.write(data_2.get(0)[9] + "\n");
-					bw_cancer_2.write("+\n");
-					bw_cancer_2.write(data_2.get(0)[10] + "\n");
-				}
-				if (option.output_stromal_fastq && gene_1.tax_id.equals(option.settings.get("stromal_taxonomy"))) {
-					bw_stroma_1.write("@" + data_1.get(0)[0] + "\n");
-					bw_stroma_1.write(data_1.get(0)[9] + "\n");
-					bw_stroma_1.write("+\n");
-					bw_stroma_1.write(data_1.get(0)[10] + "\n");
-					bw_stroma_2.write("@" + data_2.get(0)[0] + "\n");
-					bw_stroma_2.write(data_2.get(0)[9] + "\n");
-					bw_stroma_2.write("+\n");
-					bw_stroma_2.write(data_2.get(0)[10] + "\n");
-				}
-				
-				// find mapping-pairs
-				HashMap<Refseq, DetectedData> detections = new HashMap<Refseq, PairedEndInput.DetectedData>();
-				for (Refseq found_refseq : found_refseqs) {
-					detections.put(found_refseq, new DetectedData(found_refseq));
-				}
-				for (String[] data : data_1) {
-					Refseq refseq = biodb.refseq_db.get(data[2]);
-					DetectedData detection = detections.get(refseq);
-					detection.pos_a.add(Integer.valueOf(data[3])-1); // 1-order -> 0-order
-					detection.reverse_a.add((Integer.valueOf(data[1]) & 16) != 0);
-					detection.len_a.add(calculateMatchLength(data[5]));
-				}
-				for (String[] data : data_2) {
-					Refseq refseq = biodb.refseq_db.get(data[2]);
-					DetectedData detection = detections.get(refseq);
-					detection.pos_b.add(Integer.valueOf(data[3])-1); // 1-order -> 0-order
-					detection.reverse_b.add((Integer.valueOf(data[1]) & 16) != 0);
-					detection.len_b.add(calculateMatchLength(data[5]));
-				}
-				
-				// count valid mapping-pair
-				boolean valid_read = false;
-				for (Map.Entry<Refseq, DetectedData> entry : detections.entrySet()) {
-					DetectedData data = entry.getValue();
-					if (data.pos_a.size() == 1 && data.pos_b.size() == 1 &&
-						data.reverse_a.get(0) != data.reverse_b.get(0)) {
-						
-						int pos_a = data.pos_a.get(0);
-						int pos_b = data.pos_b.get(0);
-						int len_a = data.len_a.get(0);
-						int len_b = data.len_b.get(0);
-						int lap_length = Math.abs(pos_a - pos_b);
-						this.incrementPair(entry.getKey(), pos_a, pos_b, len_a, len_b);
-						if (lap_length < length_stat.length) {
-							length_stat[lap_length]++;
-						}
-						valid_read = true;
-					} else if (data.pos_a.size() > 0 && data.pos_b.size() > 0) {
-						reservation.add(data);
-					}
-				}
-				
-				if (valid_read) {
-					if (gene_1.tax_id.equals(this.option.settings.get("cancer_taxonomy"))) {
-						cancer_read_count++;
-					} else {
-						stromal_read_count++;
-					}
-				}
-				
-				if (end) break;
+			for (LoadWorker worker : workers) {
+				worker.shard.mergeInto(this);
+				reservation.addAll(worker.reservation);
+				for (int j=0; j<length_stat.length; j++) length_stat[j] += worker.length_stat[j];
+				cancer_read_count += worker.cancer_read_count;
+				stromal_read_count += worker.stromal_read_count;
 			}
 			
 			// calculate wrapped length average & sd
@@ -302,7 +141,7 @@ public class PairedEndInput extends Input {
 				}
 				
 				if (best_lap_length < Integer.MAX_VALUE) {
-					this.incrementPair(detect.refseq, final_pos_a, final_pos_b, final_len_a, final_len_b);
+					incrementPair(refseq_inputs[detect.refseq.ordinal], final_pos_a, final_pos_b, final_len_a, final_len_b);
 					if (detect.refseq.tax_id.equals(option.settings.get("cancer_taxonomy"))) {
 						cancer_read_count++;
 					} else {
@@ -311,10 +150,10 @@ public class PairedEndInput extends Input {
 				}
 			}
 			
-			br_1.close();
-			br_2.close();
-			fr_1.close();
-			fr_2.close();
+			this.accumulateCoverage();
+			
+			reader_1.close();
+			reader_2.close();
 			if (option.output_cancer_fastq) {
 				bw_cancer_1.close();
 				bw_cancer_2.close();
@@ -339,36 +178,315 @@ public class PairedEndInput extends Input {
 		return true;
 	}
 	
-	int calculateMatchLength(String data) {
-		int match_length = 0;
-		String[] length_chunks = data.split("[A-Z]");
+	/*
+	 * reader stage: cut both alignment files into chunks of read-name groups.
+	 * a group consists of the rows of input 1 sharing the read name of its first row,
+	 * and the following rows of input 2 with that name.
+	 */
+	class ChunkReader extends SamPipeline<LoadWorker> {
+		AlignmentReader reader_1, reader_2;
+		BufferedWriter[] fastq_writers;
+		AlignmentRecord.ReadName read_name = new AlignmentRecord.ReadName();
+		boolean finished = false;
+		long group_count = 0;
+		
+		ChunkReader(AlignmentReader reader_1, AlignmentReader reader_2, BufferedWriter[] fastq_writers) {
+			super(2, fastq_writers.length);
+			this.reader_1 = reader_1;
+			this.reader_2 = reader_2;
+			this.fastq_writers = fastq_writers;
+		}
+		
+		@Override
+		boolean readChunk(SamChunk chunk) throws Exception {
+			SamChunk.Lane lane_1 = chunk.lanes[0];
+			SamChunk.Lane lane_2 = chunk.lanes[1];
+			
+			while (!this.finished) {
+				if (group_count++ % 1_000_000 == 0) {
+					Logger.logf("processed %d reads.", group_count-1);
+				}
+				
+				// the current lines of both readers start the group
+				boolean end = false;
+				read_name.set(reader_1.rowBuffer(), reader_1.nameStart(), reader_1.nameEnd(), true);
+				
+				// rows from [input 1]
+				while (true) {
+					lane_1.append(reader_1.rowBuffer(), reader_1.rowStart(), reader_1.rowLength());
+					if (!reader_1.nextRow()) {
+						end = true;
+						break;
+					}
+					if (!read_name.matches(reader_1.rowBuffer(), reader_1.nameStart(), reader_1.nameEnd(), true)) {
+						break;
+					}
+				}
+				// rows from [input 2]
+				while (true) {
+					lane_2.append(reader_2.rowBuffer(), reader_2.rowStart(), reader_2.rowLength());
+					if (!reader_2.nextRow()) { // for aligners (bowtie, etc.) generating reporting comments starting from '#' at the end of inputs
+						end = true;
+						break;
+					}
+					if (!read_name.matches(reader_2.rowBuffer(), reader_2.nameStart(), reader_2.nameEnd(), true)) {
+						break;
+					}
+				}
+				chunk.endGroup();
+				
+				if (end) this.finished = true;
+				else if (chunk.group_count >= CHUNK_GROUPS) return true;
+			}
+			return false;
+		}
 		
-		int j = 0;
-		for (int i=0; i<data.length(); i++) {
-			char c = data.charAt(i);
-			if (c == 'M' || c == 'D' || c == 'N') {
-				match_length += Integer.valueOf(length_chunks[j]);
+		@Override
+		LoadWorker createWorker() {
+			return new LoadWorker(reader_1.createRecord(), reader_2.createRecord());
+		}
+		
+		@Override
+		void processChunk(LoadWorker worker, SamChunk chunk) throws Exception {
+			worker.process(chunk);
+		}
+		
+		// fastq dumps are written in the input order
+		@Override
+		void writeOutput(SamChunk chunk) throws Exception {
+			for (int k=0; k<fastq_writers.length; k++) {
+				if (fastq_writers[k] != null && chunk.output[k].length() > 0) {
+					fastq_writers[k].append(chunk.output[k]);
+				}
 			}
-			if (Character.isLetter(c)) j++;
 		}
-		return match_length;
 	}
-
-	void incrementPair(Refseq refseq, int pos_a, int pos_b, int len_a, int len_b) {
-		RefseqInput entry = refseq_inputs.get(refseq.refseq_id);
+	
+	/*
+	 * worker stage: classify read-name groups of a chunk and count valid pairs into a per-thread shard.
+	 */
+	class LoadWorker {
+		CountShard shard = new CountShard(refseq_inputs.length, match_length_distribution.length);
+		AlignmentRecord row_1, row_2; // records of each input (bam inputs have their own refID tables)
+		
+		// SEQ and QUAL are materialized only for fastq dump
+		boolean dump_fastq = option.output_cancer_fastq || option.output_stromal_fastq;
+		MappedRows data_1 = new MappedRows();
+		MappedRows data_2 = new MappedRows();
+		
+		// multiple-multiple hits are stored
+		ArrayList<DetectedData> reservation = new ArrayList<PairedEndInput.DetectedData>();
+		long[] length_stat = new long[20000];
 		
+		long cancer_read_count = 0;
+		long stromal_read_count = 0;
+		
+		LoadWorker(AlignmentRecord row_1, AlignmentRecord row_2) {
+			this.row_1 = row_1;
+			this.row_2 = row_2;
+		}
+		
+		void process(SamChunk chunk) throws IOException {
+			for (int g=0; g<chunk.group_count; g++) {
+				this.processGroup(chunk, g);
+			}
+		}
+		
+		void processGroup(SamChunk chunk, int g) throws IOException {
+			data_1.clear();
+			data_2.clear();
+			Set<Refseq> found_refseqs = new HashSet<Refseq>();
+			
+			// accept sam entries appropriate for the current directional mode
+			// 2nd column of sam file means...
+			//     0:  forward mapping
+			//     16: reverse mapping
+			//     4:  not mapped
+			
+			// load valid rows from [input 1]
+			SamChunk.Lane lane = chunk.lanes[0];
+			for (int k=lane.groupStart(g); k<lane.groupEnd(g); k++) {
+				AlignmentRecord row = row_1;
+				lane.load(k, row);
+				int map_flag = row.flag();
+				if (option.directional_mode == 0 ||
+					(option.directional_mode == 1 && (map_flag & 16) == 0) ||
+					(option.directional_mode == 2 && (map_flag & 16) != 0)) {
+					Refseq refseq = row.refseq();
+					if (refseq != null && !refseq.is_invalid && row.hasCigar()) {
+						found_refseqs.add(refseq);
+						data_1.add(row, refseq, map_flag, dump_fastq);
+					}
+				}
+			}
+			// load valid rows from [input 2]
+			lane = chunk.lanes[1];
+			for (int k=lane.groupStart(g); k<lane.groupEnd(g); k++) {
+				AlignmentRecord row = row_2;
+				lane.load(k, row);
+				int map_flag = row.flag();
+				if (option.directional_mode == 0 ||
+					(option.directional_mode == 1 && (map_flag & 16) != 0) ||
+					(option.directional_mode == 2 && (map_flag & 16) == 0)) {
+					Refseq refseq = row.refseq();
+					if (refseq != null && !refseq.is_invalid && row.hasCigar()) {
+						found_refseqs.add(refseq);
+						data_2.add(row, refseq, map_flag, dump_fastq);
+					}
+				}
+			}
+			
+			if (data_1.size() == 0 || data_2.size() == 0) return;
+			shard.match_length_distribution[data_1.get(0).match_length]++;
+			shard.match_length_distribution[data_2.get(0).match_length]++;
+			
+			// check unique-gene-hit condition
+			Gene gene_1 = data_1.get(0).refseq.gene;
+			Gene gene_2 = data_2.get(0).refseq.gene;
+			boolean multiple_gene_hit = false;
+			for (int j=1; j<data_1.size(); j++) {
+				Gene gene_j = data_1.get(j).refseq.gene;
+				if (gene_1 != gene_j) {
+					multiple_gene_hit = true;
+					break;
+				}
+			}
+			for (int j=1; j<data_2.size(); j++) {
+				Gene gene_j = data_2.get(j).refseq.gene;
+				if (gene_2 != gene_j) {
+					multiple_gene_hit = true;
+					break;
+				}
+			}
+			if (multiple_gene_hit) return;
+			
+			// check the gene correspondence among the pair
+			if (gene_1 != gene_2) return;
+			
+			// dump cancer/stromal fastq (if user specified)
+			if (option.output_cancer_fastq && gene_1.tax_id.equals(option.settings.get("cancer_taxonomy"))) {
+				data_1.get(0).writeFastq(chunk.output[0]);
+				data_2.get(0).writeFastq(chunk.output[1]);
+			}
+			if (option.output_stromal_fastq && gene_1.tax_id.equals(option.settings.get("stromal_taxonomy"))) {
+				data_1.get(0).writeFastq(chunk.output[2]);
+				data_2.get(0).writeFastq(chunk.output[3]);
+			}
+			
+			// find mapping-pairs
+			HashMap<Refseq, DetectedData> detections = new HashMap<Refseq, PairedEndInput.DetectedData>();
+			for (Refseq found_refseq : found_refseqs) {
+				detections.put(found_refseq, new DetectedData(found_refseq));
+			}
+			for (int j=0; j<data_1.size(); j++) {
+				MappedRow data = data_1.get(j);
+				DetectedData detection = detections.get(data.refseq);
+				detection.pos_a.add(data.position);
+				detection.reverse_a.add((data.flag & 16) != 0);
+				detection.len_a.add(data.match_length);
+			}
+			for (int j=0; j<data_2.size(); j++) {
+				MappedRow data = data_2.get(j);
+				DetectedData detection = detections.get(data.refseq);
+				detection.pos_b.add(data.position);
+				detection.reverse_b.add((data.flag & 16) != 0);
+				detection.len_b.add(data.match_length);
+			}
+			
+			// count valid mapping-pair
+			boolean valid_read = false;
+			for (Map.Entry<Refseq, DetectedData> entry : detections.entrySet()) {
+				DetectedData data = entry.getValue();
+				if (data.pos_a.size() == 1 && data.pos_b.size() == 1 &&
+					data.reverse_a.get(0) != data.reverse_b.get(0)) {
+					
+					int pos_a = data.pos_a.get(0);
+					int pos_b = data.pos_b.get(0);
+					int len_a = data.len_a.get(0);
+					int len_b = data.len_b.get(0);
+					int lap_length = Math.abs(pos_a - pos_b);
+					incrementPair(shard.get(entry.getKey()), pos_a, pos_b, len_a, len_b);
+					if (lap_length < length_stat.length) {
+						length_stat[lap_length]++;
+					}
+					valid_read = true;
+				} else if (data.pos_a.size() > 0 && data.pos_b.size() > 0) {
+					reservation.add(data);
+				}
+			}
+			
+			if (valid_read) {
+				if (gene_1.tax_id.equals(option.settings.get("cancer_taxonomy"))) {
+					cancer_read_count++;
+				} else {
+					stromal_read_count++;
+				}
+			}
+		}
+	}
+	
+	void incrementPair(RefseqInput entry, int pos_a, int pos_b, int len_a, int len_b) {
 		entry.rawCount++;
-		entry.starting_counts[pos_a]++;
-		entry.starting_counts[pos_b]++;
+		entry.starting_counts.add(pos_a, 1);
+		entry.starting_counts.add(pos_b, 1);
+		
+		entry.addCoverage(pos_a, len_a);
+		entry.addCoverage(pos_b, len_b);
+	}
+	
+	/*
+	 * accepted rows of a read-name group.
+	 * row objects are pooled and reused over groups.
+	 */
+	static class MappedRows {
+		ArrayList<MappedRow> rows = new ArrayList<MappedRow>();
+		int size = 0;
 		
-		for (int i=pos_a; i<pos_a+len_a && i<refseq.length; i++) {
-			entry.overlap_counts[i]++;
+		void clear() {
+			this.size = 0;
 		}
-		for (int i=pos_b; i<pos_b+len_b && i<refseq.length; i++) {
-			entry.overlap_counts[i]++;
+		
+		int size() {
+			return this.size;
+		}
+		
+		MappedRow get(int i) {
+			return this.rows.get(i);
+		}
+		
+		void add(AlignmentRecord record, Refseq refseq, int flag, boolean with_sequence) {
+			if (this.size == this.rows.size()) this.rows.add(new MappedRow());
+			MappedRow row = this.rows.get(this.size);
+			row.refseq = refseq;
+			row.flag = flag;
+			row.position = record.position();
+			row.match_length = record.matchLength();
+			
+			// only the first row of a group can be written to fastq
+			if (with_sequence && this.size == 0) {
+				row.read_name = record.readName();
+				row.sequence = record.sequence();
+				row.quality = record.quality();
+			}
+			this.size++;
 		}
 	}
-
+	
+	static class MappedRow {
+		Refseq refseq;
+		int flag;
+		int position;
+		int match_length;
+		String read_name, sequence, quality;
+		
+		void writeFastq(StringBuilder sb) {
+			sb.append('@').append(this.read_name).append('\n');
+			sb.append(this.sequence).append('\n');
+			sb.append("+\n");
+			sb.append(this.quality).append('\n');
+		}
+	}
+	
 	class DetectedData {
 		public Refseq refseq;
 		public ArrayList<Integer> pos_a;
@@ -0,0 +1,116 @@
+package interactome.input;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * stream drained ahead by a background thread into a bounded set of blocks.
+ * used for stdin and named pipes, so that the aligner writing into them keeps running
+ * while the loading pipeline is busy, up to block_count * block_size bytes ahead.
+ */
+public class ReadAheadInputStream extends InputStream {
+	static final int BLOCK_SIZE = 1 << 20;
+	
+	InputStream in;
+	BlockingQueue<Block> free;
+	BlockingQueue<Block> filled;
+	Thread reader;
+	volatile boolean closed = false;
+	
+	// the current block
+	Block block = null;
+	int position = 0;
+	boolean eof = false;
+	
+	static class Block {
+		byte[] data = new byte[BLOCK_SIZE];
+		int length = 0;
+		IOException error = null; // set on the block ending the stream abnormally
+	}
+	
+	public ReadAheadInputStream(InputStream in, String name, long read_ahead_bytes) {
+		this.in = in;
+		int block_count = (int)Math.max(2, Math.min(Integer.MAX_VALUE, read_ahead_bytes / BLOCK_SIZE));
+		this.free = new ArrayBlockingQueue<Block>(block_count);
+		this.filled = new ArrayBlockingQueue<Block>(block_count);
+		for (int i=0; i<block_count; i++) this.free.add(new Block());
+		
+		this.reader = new Thread("read-ahead-" + name) {
+			public void run() {
+				drain();
+			}
+		};
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+	
+	// background thread: fill free blocks until the end of input. an empty block marks the end.
+	private void drain() {
+		try {
+			while (true) {
+				Block b = this.free.take();
+				b.length = 0;
+				try {
+					while (b.length < b.data.length) {
+						int n = this.in.read(b.data, b.length, b.data.length - b.length);
+						if (n < 0) break;
+						b.length += n;
+						if (this.in.available() == 0 && b.length > 0) break; // hand over what the writer has produced so far
+					}
+				} catch (IOException e) {
+					if (!this.closed) b.error = e;
+					b.length = 0;
+				}
+				this.filled.put(b);
+				if (b.length == 0) return;
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (!this.ensureBlock()) return -1;
+		return this.block.data[this.position++] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!this.ensureBlock()) return -1;
+		int n = Math.min(len, this.block.length - this.position);
+		System.arraycopy(this.block.data, this.position, b, off, n);
+		this.position += n;
+		return n;
+	}
+	
+	// move to the next block if the current one was consumed. returns false at the end of input.
+	private boolean ensureBlock() throws IOException {
+		if (this.eof) return false;
+		if (this.block != null && this.position < this.block.length) return true;
+		if (this.block != null) this.free.add(this.block);
+		try {
+			this.block = this.filled.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		this.position = 0;
+		if (this.block.error != null) throw this.block.error;
+		if (this.block.length == 0) {
+			this.eof = true;
+			return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		this.reader.interrupt();
+		this.in.close();
+	}
+}
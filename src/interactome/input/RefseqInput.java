@@ -1,38 +1,56 @@
 package interactome.input;
 
+import java.io.IOException;
+
 import interactome.data.Refseq;
 
 public class RefseqInput {
 	public Refseq refseq;
 	
 	public long rawCount = 0;
-	public long[] overlap_counts;
-	public long[] starting_counts;
+	public CountStore overlap_counts; // holds start/end events of the coverage while loading (see addCoverage)
+	public CountStore starting_counts;
+	
+	// weighted mappability of this sample (see DynamicParameters.calculateWeightedMappability)
+	public float[] mappability;
+	public int mappable_position_count = 0;
+	public double mappability_sum = 0;
+	public boolean is_long_and_unmappable = false;
 
 	public double true_expression;
 	
 	public double v_init; // initial value of correction
 	public double v_end; // ending value of correction
-	public float[] residue_init;
+	public float[] residue_init; // null if no read was mapped
 	public float[] residue_end;
 	
+	// ratio of positions covered by depth or more reads (from the histogram made by accumulateCoverage)
 	public double coverage(int depth) {
-		int covered = 0;
-		for (int i=0; i<this.refseq.length; i++) {
-			if (this.overlap_counts[i] >= depth) covered++;
-		}
+		int covered = this.overlap_counts.histogram.positions(depth);
 		
 		return (double)covered / this.refseq.length;
 	}
 	
+	// record coverage of [start, start+length) as +1/-1 events, which is materialized by accumulateCoverage()
+	void addCoverage(int start, int length) {
+		this.overlap_counts.add(start, 1);
+		int end = start + length;
+		if (end < this.refseq.length) this.overlap_counts.add(end, -1);
+	}
+	
+	// turn coverage events into overlap counts by one prefix-sum pass (and move them into file, if given)
+	void accumulateCoverage(CoverageFile file) throws IOException {
+		this.starting_counts.seal(false, file);
+		this.overlap_counts.seal(true, file);
+	}
+	
 	public RefseqInput(Refseq refseq) {
 		this.refseq = refseq;
 		if (!refseq.is_invalid) {
-			this.overlap_counts = new long[refseq.length];
-			this.starting_counts = new long[refseq.length];
-
-			this.residue_init = new float[refseq.length];
-			this.residue_end = new float[refseq.length];
+			// count arrays are allocated as reads are counted
+			this.overlap_counts = new CountStore(refseq.length);
+			this.starting_counts = new CountStore(refseq.length);
+			// residue_init and residue_end are allocated when residues are calculated
 		}
 	}
 }
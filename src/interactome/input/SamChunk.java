@@ -0,0 +1,94 @@
+package interactome.input;
+
+/*
+ * a block of raw alignment rows (sam lines or bam records) cut at read-name group boundaries.
+ * one lane is used for single-end input, and two lanes (_1 and _2) for paired-end input,
+ * where group g of the first lane corresponds to group g of the second lane.
+ */
+class SamChunk {
+	long sequence; // position of the chunk in the input
+	int group_count = 0;
+	Lane[] lanes;
+	
+	// text produced by a worker for this chunk (e.g., fastq), written out in chunk order
+	StringBuilder[] output;
+	
+	SamChunk(int lane_count, int output_count) {
+		this.lanes = new Lane[lane_count];
+		for (int i=0; i<lane_count; i++) this.lanes[i] = new Lane();
+		this.output = new StringBuilder[output_count];
+		for (int i=0; i<output_count; i++) this.output[i] = new StringBuilder();
+	}
+	
+	void clear() {
+		this.group_count = 0;
+		for (Lane lane : this.lanes) lane.clear();
+		for (StringBuilder sb : this.output) sb.setLength(0);
+	}
+	
+	// close the current group on every lane
+	void endGroup() {
+		for (Lane lane : this.lanes) lane.endGroup(this.group_count);
+		this.group_count++;
+	}
+	
+	static class Lane {
+		byte[] data = new byte[1 << 20];
+		int length = 0;
+		
+		int row_count = 0;
+		int[] row_start = new int[8192];
+		int[] row_length = new int[8192];
+		
+		// exclusive row index where each group ends
+		int[] group_end = new int[1024];
+		
+		void clear() {
+			this.length = 0;
+			this.row_count = 0;
+		}
+		
+		void append(byte[] buf, int start, int len) {
+			if (this.data.length < this.length + len) {
+				byte[] larger = new byte[Math.max(this.data.length * 2, this.length + len)];
+				System.arraycopy(this.data, 0, larger, 0, this.length);
+				this.data = larger;
+			}
+			if (this.row_count == this.row_start.length) {
+				int[] larger_start = new int[this.row_start.length * 2];
+				int[] larger_length = new int[this.row_length.length * 2];
+				System.arraycopy(this.row_start, 0, larger_start, 0, this.row_count);
+				System.arraycopy(this.row_length, 0, larger_length, 0, this.row_count);
+				this.row_start = larger_start;
+				this.row_length = larger_length;
+			}
+			System.arraycopy(buf, start, this.data, this.length, len);
+			this.row_start[this.row_count] = this.length;
+			this.row_length[this.row_count] = len;
+			this.row_count++;
+			this.length += len;
+		}
+		
+		void endGroup(int group) {
+			if (group == this.group_end.length) {
+				int[] larger = new int[this.group_end.length * 2];
+				System.arraycopy(this.group_end, 0, larger, 0, group);
+				this.group_end = larger;
+			}
+			this.group_end[group] = this.row_count;
+		}
+		
+		int groupStart(int group) {
+			return group == 0 ? 0 : this.group_end[group-1];
+		}
+		
+		int groupEnd(int group) {
+			return this.group_end[group];
+		}
+		
+		// point the record to a row of this lane
+		void load(int row, AlignmentRecord record) {
+			record.wrap(this.data, this.row_start[row], this.row_length[row]);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package interactome.input;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * pipelined loading of alignment input (sam or bam).
+ *   reader stage:  cuts the input into SamChunks at read-name group boundaries (readChunk).
+ *   worker stage:  N threads classify the groups of each chunk into per-thread state (processChunk).
+ *   caller thread: writes chunk outputs in input order (writeOutput) and recycles the chunk.
+ * chunks are recycled through a fixed pool, which bounds the read-ahead.
+ */
+abstract class SamPipeline<W> {
+	final int lane_count;
+	final int output_count;
+	
+	private final SamChunk END = new SamChunk(0, 0);
+	private final SamChunk ABORT = new SamChunk(0, 0);
+	private volatile Throwable failure = null;
+	private final List<Thread> threads = new ArrayList<Thread>();
+	
+	SamPipeline(int lane_count, int output_count) {
+		this.lane_count = lane_count;
+		this.output_count = output_count;
+	}
+	
+	// fill the chunk with complete read-name groups. returns false once the input is exhausted.
+	abstract boolean readChunk(SamChunk chunk) throws Exception;
+	
+	// per-thread state of a worker
+	abstract W createWorker();
+	
+	abstract void processChunk(W worker, SamChunk chunk) throws Exception;
+	
+	// called for every chunk in input order after it was processed
+	void writeOutput(SamChunk chunk) throws Exception {
+	}
+	
+	/*
+	 * run the pipeline to the end of input and return the worker states for merging.
+	 */
+	List<W> run(int thread_count) throws Exception {
+		final int worker_count = Math.max(1, thread_count);
+		final int pool_size = worker_count * 2 + 2;
+		
+		final BlockingQueue<SamChunk> free = new ArrayBlockingQueue<SamChunk>(pool_size);
+		final BlockingQueue<SamChunk> filled = new ArrayBlockingQueue<SamChunk>(pool_size + worker_count);
+		final BlockingQueue<SamChunk> done = new LinkedBlockingQueue<SamChunk>();
+		for (int i=0; i<pool_size; i++) free.add(new SamChunk(this.lane_count, this.output_count));
+		
+		// reader stage
+		this.threads.add(new Thread("sam-reader") {
+			public void run() {
+				try {
+					long sequence = 0;
+					boolean more = true;
+					while (more) {
+						SamChunk chunk = free.take();
+						chunk.clear();
+						more = readChunk(chunk);
+						if (chunk.group_count > 0) {
+							chunk.sequence = sequence++;
+							filled.put(chunk);
+						} else {
+							free.put(chunk);
+						}
+					}
+					for (int i=0; i<worker_count; i++) filled.put(END);
+				} catch (Throwable e) {
+					abort(e, done);
+				}
+			}
+		});
+		
+		// worker stage
+		final List<W> workers = new ArrayList<W>();
+		for (int i=0; i<worker_count; i++) {
+			final W worker = this.createWorker();
+			workers.add(worker);
+			this.threads.add(new Thread("sam-worker-" + i) {
+				public void run() {
+					try {
+						while (true) {
+							SamChunk chunk = filled.take();
+							if (chunk == END) break;
+							processChunk(worker, chunk);
+							done.put(chunk);
+						}
+						done.put(END);
+					} catch (Throwable e) {
+						abort(e, done);
+					}
+				}
+			});
+		}
+		
+		for (Thread thread : this.threads) thread.start();
+		
+		// write outputs in input order and recycle chunks
+		try {
+			HashMap<Long, SamChunk> pending = new HashMap<Long, SamChunk>();
+			long next_sequence = 0;
+			int finished_workers = 0;
+			while (finished_workers < worker_count) {
+				SamChunk chunk = done.take();
+				if (chunk == ABORT) break;
+				if (chunk == END) {
+					finished_workers++;
+					continue;
+				}
+				pending.put(chunk.sequence, chunk);
+				while ((chunk = pending.remove(next_sequence)) != null) {
+					this.writeOutput(chunk);
+					next_sequence++;
+					free.put(chunk);
+				}
+			}
+		} catch (Throwable e) {
+			this.failure = e;
+		}
+		
+		if (this.failure != null) {
+			for (Thread thread : this.threads) thread.interrupt();
+		}
+		for (Thread thread : this.threads) thread.join();
+		
+		if (this.failure != null) {
+			if (this.failure instanceof Exception) throw (Exception)this.failure;
+			throw new RuntimeException(this.failure);
+		}
+		return workers;
+	}
+	
+	private void abort(Throwable e, BlockingQueue<SamChunk> done) {
+		synchronized (this) {
+			if (this.failure != null) return;
+			this.failure = e;
+		}
+		done.add(ABORT);
+	}
+}
@@ -0,0 +1,141 @@
+package interactome.input;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * line reader for sam files working on raw bytes.
+ * lines are exposed in place, so no object is created per row.
+ */
+public class SamReader extends AlignmentReader {
+	InputStream in;
+	byte[] buffer;
+	int position = 0;
+	int limit = 0;
+	boolean eof = false;
+	
+	// the current line
+	int line_start = 0;
+	int line_length = 0;
+	
+	public SamReader(InputStream in) {
+		this(in, 1 << 20);
+	}
+	
+	public SamReader(InputStream in, int buffer_size) {
+		this.in = in;
+		this.buffer = new byte[buffer_size];
+	}
+	
+	/*
+	 * move to the next alignment row.
+	 * header lines starting from '@' are skipped, and a comment line starting from '#' ends the input
+	 * (aligners such as bowtie write reporting comments at the end of outputs).
+	 */
+	@Override
+	public boolean nextRow() throws IOException {
+		while (this.nextLine(true)) {
+			if (this.buffer[this.line_start] != '@') return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * move to the next non-empty line without copying it.
+	 * the line is available from lineBuffer(), lineStart() and lineLength() until the next call.
+	 */
+	public boolean nextLine(boolean stop_at_comment) throws IOException {
+		while (true) {
+			// find the line terminator in the buffered bytes
+			int i = this.position;
+			while (i < this.limit && this.buffer[i] != '\n') i++;
+			
+			if (i < this.limit || (this.eof && this.position < this.limit)) {
+				int start = this.position;
+				int end = i;
+				this.position = Math.min(i+1, this.limit);
+				if (end > start && this.buffer[end-1] == '\r') end--;
+				if (end == start) continue; // empty line
+				if (stop_at_comment && this.buffer[start] == '#') {
+					this.position = start;
+					return false;
+				}
+				this.line_start = start;
+				this.line_length = end - start;
+				return true;
+			}
+			if (this.eof) return false;
+			this.fill();
+		}
+	}
+	
+	public byte[] lineBuffer() {
+		return this.buffer;
+	}
+	
+	public int lineStart() {
+		return this.line_start;
+	}
+	
+	public int lineLength() {
+		return this.line_length;
+	}
+	
+	@Override
+	public byte[] rowBuffer() {
+		return this.buffer;
+	}
+	
+	@Override
+	public int rowStart() {
+		return this.line_start;
+	}
+	
+	@Override
+	public int rowLength() {
+		return this.line_length;
+	}
+	
+	// QNAME is the first column; the name ends at the first tab
+	@Override
+	public int nameStart() {
+		return this.line_start;
+	}
+	
+	@Override
+	public int nameEnd() {
+		return this.line_start + this.line_length;
+	}
+	
+	@Override
+	public AlignmentRecord createRecord() {
+		return new SamRecord();
+	}
+	
+	// move the unread bytes to the head of the buffer and read more
+	private void fill() throws IOException {
+		int remaining = this.limit - this.position;
+		if (remaining > 0 && this.position > 0) {
+			System.arraycopy(this.buffer, this.position, this.buffer, 0, remaining);
+		}
+		this.position = 0;
+		this.limit = remaining;
+		if (this.limit == this.buffer.length) {
+			// a line longer than the buffer
+			byte[] larger = new byte[this.buffer.length * 2];
+			System.arraycopy(this.buffer, 0, larger, 0, this.limit);
+			this.buffer = larger;
+		}
+		int n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+		if (n < 0) {
+			this.eof = true;
+		} else {
+			this.limit += n;
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+}
@@ -0,0 +1,197 @@
+package interactome.input;
+
+import java.nio.charset.StandardCharsets;
+
+import interactome.data.BioDB;
+import interactome.data.Refseq;
+
+/*
+ * a sam row tokenized in place.
+ * the row is kept as raw bytes with the offsets of its tab-separated fields,
+ * and only the fields a stage actually needs are parsed or turned into Strings.
+ */
+public class SamRecord extends AlignmentRecord {
+	// sam columns
+	public static final int QNAME = 0;
+	public static final int FLAG = 1;
+	public static final int RNAME = 2;
+	public static final int POS = 3;
+	public static final int MAPQ = 4;
+	public static final int CIGAR = 5;
+	public static final int SEQ = 9;
+	public static final int QUAL = 10;
+	
+	static final int MAX_FIELDS = 11; // optional tags after QUAL are never tokenized
+	
+	byte[] line;
+	int offset = 0;
+	int length = 0;
+	
+	int field_count = 0;
+	final int[] field_start = new int[MAX_FIELDS];
+	final int[] field_end = new int[MAX_FIELDS];
+	
+	@Override
+	void wrap(byte[] src, int offset, int len) {
+		this.line = src;
+		this.offset = offset;
+		this.length = len;
+		this.tokenize();
+	}
+	
+	void tokenize() {
+		this.field_count = 0;
+		int start = this.offset;
+		int end = this.offset + this.length;
+		for (int i=this.offset; i<end && this.field_count<MAX_FIELDS; i++) {
+			if (this.line[i] == '\t') {
+				this.field_start[this.field_count] = start;
+				this.field_end[this.field_count] = i;
+				this.field_count++;
+				start = i+1;
+			}
+		}
+		if (this.field_count < MAX_FIELDS) {
+			this.field_start[this.field_count] = start;
+			this.field_end[this.field_count] = end;
+			this.field_count++;
+		}
+	}
+	
+	public boolean isHeader() {
+		return this.length > 0 && this.line[this.offset] == '@';
+	}
+	
+	public int fieldCount() {
+		return this.field_count;
+	}
+	
+	// materialize a field as String
+	public String field(int field) {
+		checkField(field);
+		return new String(this.line, this.field_start[field], this.field_end[field] - this.field_start[field], StandardCharsets.ISO_8859_1);
+	}
+	
+	// parse an integer field without materializing it
+	public int intField(int field) {
+		checkField(field);
+		int i = this.field_start[field];
+		int end = this.field_end[field];
+		boolean negative = false;
+		if (i < end && this.line[i] == '-') {
+			negative = true;
+			i++;
+		}
+		if (i == end) throw new NumberFormatException("empty integer field " + field);
+		int value = 0;
+		for (; i<end; i++) {
+			int d = this.line[i] - '0';
+			if (d < 0 || d > 9) throw new NumberFormatException("invalid integer field " + field + ": " + this.field(field));
+			value = value * 10 + d;
+		}
+		return negative ? -value : value;
+	}
+	
+	// true if the field consists of the single character c (e.g., "*")
+	public boolean fieldEquals(int field, char c) {
+		checkField(field);
+		return this.field_end[field] - this.field_start[field] == 1 && this.line[this.field_start[field]] == c;
+	}
+	
+	public boolean fieldContains(int field, char c) {
+		checkField(field);
+		for (int i=this.field_start[field]; i<this.field_end[field]; i++) {
+			if (this.line[i] == c) return true;
+		}
+		return false;
+	}
+	
+	@Override
+	byte[] buffer() {
+		return this.line;
+	}
+	
+	@Override
+	int nameStart() {
+		checkField(QNAME);
+		return this.field_start[QNAME];
+	}
+	
+	@Override
+	int nameEnd() {
+		checkField(QNAME);
+		return this.field_end[QNAME];
+	}
+	
+	@Override
+	public String readName() {
+		return this.field(QNAME);
+	}
+	
+	@Override
+	public int flag() {
+		return this.intField(FLAG);
+	}
+	
+	@Override
+	public boolean isMapped() {
+		return !this.fieldContains(RNAME, '*');
+	}
+	
+	// RNAME is resolved on raw bytes by the refseq dictionary
+	@Override
+	public Refseq refseq() {
+		checkField(RNAME);
+		BioDB biodb = BioDB.getInstance();
+		int ordinal = biodb.refseq_dictionary.lookup(this.line, this.field_start[RNAME], this.field_end[RNAME]);
+		return ordinal < 0 ? null : biodb.all_refseqs[ordinal];
+	}
+	
+	@Override
+	public int position() {
+		return this.intField(POS)-1; // 1-order -> 0-order
+	}
+	
+	@Override
+	public boolean hasCigar() {
+		return !this.fieldEquals(CIGAR, '*');
+	}
+	
+	@Override
+	public String sequence() {
+		return this.field(SEQ);
+	}
+	
+	@Override
+	public String quality() {
+		return this.field(QUAL);
+	}
+	
+	// match-length from CIGAR string (CIGAR does not contain mismatch information)
+	@Override
+	public int matchLength() {
+		checkField(CIGAR);
+		int match_length = 0;
+		int value = 0;
+		for (int i=this.field_start[CIGAR]; i<this.field_end[CIGAR]; i++) {
+			byte c = this.line[i];
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+			} else {
+				if (c == 'M' || c == 'D' || c == 'N') match_length += value;
+				value = 0;
+			}
+		}
+		return match_length;
+	}
+	
+	public String toString() {
+		return new String(this.line, this.offset, this.length, StandardCharsets.ISO_8859_1);
+	}
+	
+	private void checkField(int field) {
+		if (field >= this.field_count) {
+			throw new IllegalStateException("sam row has only " + this.field_count + " fields: " + this.toString());
+		}
+	}
+}
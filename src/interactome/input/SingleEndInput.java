@@ -1,8 +1,7 @@
 package interactome.input;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import interactome.Logger;
@@ -14,180 +13,239 @@ import interactome.data.Refseq;
 public class SingleEndInput extends Input {
 	BioDB biodb;
 	Option option;
-	Random r;
 	
 	final int MIN_MATCH_LENGTH = 50;
 	
+	// rows per chunk handed to a loading thread
+	final int CHUNK_ROWS = 65536;
+	
 	public SingleEndInput() {
 		super();
 		this.biodb = BioDB.getInstance();
-		this.r = new Random();
 	}
-
+	
 	@Override
 	public boolean loadFile() {
 		option = Option.getInstance();
 		
 		Logger.logf("\nstart loading RNA-seq file (single-ended)");
 		try {
-			FileReader fr = new FileReader(option.input_file_single);
-			BufferedReader br = new BufferedReader(fr);
+			AlignmentReader reader = AlignmentReader.open(option.input_file_single);
+			
+			List<LoadWorker> workers = new ChunkReader(reader).run(option.threads);
 			
 			long row_count = 0; // number of sam entry
 			long map_count = 0; // number of mapped sam entry
 			long accepted_read_count = 0;
 			long cancer_read_count = 0;
 			long stromal_read_count = 0;
+			for (LoadWorker worker : workers) {
+				worker.shard.mergeInto(this);
+				row_count += worker.row_count;
+				map_count += worker.map_count;
+				accepted_read_count += worker.accepted_read_count;
+				cancer_read_count += worker.cancer_read_count;
+				stromal_read_count += worker.stromal_read_count;
+			}
+			this.accumulateCoverage();
 			
-			String current_read = "";
-			ArrayList<String> mapped_refseq_ids = new ArrayList<String>();
-			ArrayList<Integer> mapped_positions = new ArrayList<Integer>();
-			ArrayList<Integer> mapped_lengthes = new ArrayList<Integer>(); 
+			Logger.logf("%d sam rows are loaded.", row_count);
+			Logger.logf("%d maps are contained in the sam file.", map_count);
+			Logger.logf("%d reads are mapped to unique genes.", accepted_read_count);
+			Logger.logf("(cancer: %d, stroma: %d)", cancer_read_count, stromal_read_count);
 			
-			String line = null;
-			while ((line = br.readLine()) != null) {
-				if (line.charAt(0) == '@') continue;
-				if (row_count++ % 1_000_000 == 0) Logger.logf("processed %d rows", row_count-1);
+			reader.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * reader stage: cut the alignment file into chunks at read-id boundaries.
+	 */
+	class ChunkReader extends SamPipeline<LoadWorker> {
+		AlignmentReader reader;
+		AlignmentRecord.ReadName last_read = new AlignmentRecord.ReadName();
+		boolean has_pending_line = false; // current line of the reader belongs to the next chunk
+		long row_count = 0;
+		
+		ChunkReader(AlignmentReader reader) {
+			super(1, 0);
+			this.reader = reader;
+		}
+		
+		@Override
+		boolean readChunk(SamChunk chunk) throws Exception {
+			SamChunk.Lane lane = chunk.lanes[0];
+			
+			while (true) {
+				if (!this.has_pending_line) {
+					if (!reader.nextRow()) {
+						if (lane.row_count > 0) chunk.endGroup();
+						return false;
+					}
+					if (row_count++ % 1_000_000 == 0) Logger.logf("processed %d rows", row_count-1);
+				}
+				this.has_pending_line = false;
 				
-				String[] row = line.split("\t");
-				String read_id = row[0];
-				String refseq_id = row[2];
+				byte[] buf = reader.rowBuffer();
+				int name_start = reader.nameStart();
+				int name_end = reader.nameEnd();
+				if (lane.row_count > 0 && !last_read.matches(buf, name_start, name_end, false)) {
+					chunk.endGroup();
+					if (lane.row_count >= CHUNK_ROWS) {
+						this.has_pending_line = true;
+						return true;
+					}
+				}
+				last_read.set(buf, name_start, name_end, false);
+				lane.append(buf, reader.rowStart(), reader.rowLength());
+			}
+		}
+		
+		@Override
+		LoadWorker createWorker() {
+			return new LoadWorker(reader.createRecord());
+		}
+		
+		@Override
+		void processChunk(LoadWorker worker, SamChunk chunk) throws Exception {
+			worker.process(chunk);
+		}
+	}
+	
+	/*
+	 * worker stage: classify reads of a chunk and count them into a per-thread shard.
+	 */
+	class LoadWorker {
+		CountShard shard = new CountShard(refseq_inputs.length, match_length_distribution.length);
+		Random r = new Random();
+		AlignmentRecord row;
+		
+		long row_count = 0;
+		long map_count = 0;
+		long accepted_read_count = 0;
+		long cancer_read_count = 0;
+		long stromal_read_count = 0;
+		
+		AlignmentRecord.ReadName current_read = new AlignmentRecord.ReadName();
+		ArrayList<Refseq> mapped_refseqs = new ArrayList<Refseq>();
+		ArrayList<Integer> mapped_positions = new ArrayList<Integer>();
+		ArrayList<Integer> mapped_lengthes = new ArrayList<Integer>();
+		
+		LoadWorker(AlignmentRecord row) {
+			this.row = row;
+		}
+		
+		void process(SamChunk chunk) {
+			SamChunk.Lane lane = chunk.lanes[0];
+			
+			for (int k=0; k<lane.row_count; k++) {
+				lane.load(k, row);
+				row_count++;
 				
 				// no hit
-				if (refseq_id.contains("*")) continue;
+				if (!row.isMapped()) continue;
 				map_count++;
 				
-				// calculate match-length from CIGAR string (CIGAR does not contain mismatch information)
-				int match_length = 0;
-				String[] length_chunks = row[5].split("[A-Z]");
-				
-				int j = 0;
-				for (int i=0; i<row[5].length(); i++) {
-					char c = row[5].charAt(i);
-					if (c == 'M' || c == 'D' || c == 'N') {
-						match_length += Integer.valueOf(length_chunks[j]);
-					}
-					if (Character.isLetter(c)) j++;
-				}
-				if (match_length > this.match_length_distribution.length) {
-					Logger.errorf("too long match length! (%d bp, readID = %s)", match_length, read_id);
+				int match_length = row.matchLength();
+				if (match_length > shard.match_length_distribution.length) {
+					Logger.errorf("too long match length! (%d bp, readID = %s)", match_length, row.readName());
 					continue;
 				}
-				this.match_length_distribution[match_length]++;
+				shard.match_length_distribution[match_length]++;
 				
-				int match_position = Integer.valueOf(row[3])-1; // 1-order -> 0-order
+				int match_position = row.position();
 				
 				// ignore too short match length
 				if (match_length < MIN_MATCH_LENGTH) continue;
 				
-				Refseq refseq = biodb.refseq_db.get(refseq_id);
+				Refseq refseq = row.refseq();
 				if (refseq == null) continue;
 				
 				// when current read was changed
-				if (!current_read.equals(read_id)) {
-					// if the read was mapped to an unique gene
-					if (isSingleGeneHit(mapped_refseq_ids)) {
-						// count up
-						countRead(
-							mapped_refseq_ids.toArray(new String[]{}),
-							mapped_positions.toArray(new Integer[]{}),
-							mapped_lengthes.toArray(new Integer[]{}));
-						accepted_read_count++;
-						
-						if (biodb.refseq_db.get(mapped_refseq_ids.get(0)).tax_id.equals(option.settings.get("cancer_taxonomy"))) {
-							cancer_read_count++;
-						} else {
-							stromal_read_count++;
-						}
-					}
-					// clear buffers
-					mapped_refseq_ids.clear();
-					mapped_positions.clear();
-					mapped_lengthes.clear();
+				if (!current_read.matches(row, false)) {
+					this.flushRead();
 				}
-				current_read = read_id;
+				current_read.set(row, false);
 				
-				mapped_refseq_ids.add(refseq_id);
+				mapped_refseqs.add(refseq);
 				mapped_positions.add(match_position);
 				mapped_lengthes.add(match_length);
 			}
-			// process final read
-			if (isSingleGeneHit(mapped_refseq_ids)) {
+			// process final read (chunks never split a read)
+			this.flushRead();
+		}
+		
+		void flushRead() {
+			// if the read was mapped to an unique gene
+			if (isSingleGeneHit(mapped_refseqs)) {
 				// count up
 				countRead(
-					mapped_refseq_ids.toArray(new String[]{}),
+					mapped_refseqs.toArray(new Refseq[]{}),
 					mapped_positions.toArray(new Integer[]{}),
 					mapped_lengthes.toArray(new Integer[]{}));
 				accepted_read_count++;
 				
-				if (biodb.refseq_db.get(mapped_refseq_ids.get(0)).tax_id.equals(option.settings.get("cancer_taxonomy"))) {
+				if (mapped_refseqs.get(0).tax_id.equals(option.settings.get("cancer_taxonomy"))) {
 					cancer_read_count++;
 				} else {
 					stromal_read_count++;
 				}
 			}
-			
-			Logger.logf("%d sam rows are loaded.", row_count);
-			Logger.logf("%d maps are contained in the sam file.", map_count);
-			Logger.logf("%d reads are mapped to unique genes.", accepted_read_count);
-			Logger.logf("(cancer: %d, stroma: %d)", cancer_read_count, stromal_read_count);
-			
-			br.close();
-			fr.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-			return false;
+			// clear buffers
+			mapped_refseqs.clear();
+			mapped_positions.clear();
+			mapped_lengthes.clear();
 		}
 		
-		return true;
+		void countRead(Refseq[] refseqs, Integer[] positions, Integer[] lengthes) {
+			boolean[] used = new boolean[refseqs.length];
+			for (int i=0; i<refseqs.length; i++) used[i] = false;
+			
+			ArrayList<Integer>indexes = new ArrayList<Integer>();
+			for (int i=0; i<refseqs.length; i++) {
+				if (used[i]) continue;
+				indexes.clear();
+				
+				for (int j=i; j<refseqs.length; j++) {
+					if (refseqs[i] == refseqs[j]) {
+						indexes.add(j);
+						used[j] = true;
+					}
+				}
+				
+				int indexForCount = r.nextInt(indexes.size());
+				incrementSingle(shard, refseqs[indexForCount], positions[indexForCount], lengthes[indexForCount]);
+			}
+		}
 	}
-
-	boolean isSingleGeneHit(ArrayList<String> refseq_ids) {
-		if (refseq_ids.size() == 0) return false;
-
+	
+	boolean isSingleGeneHit(ArrayList<Refseq> refseqs) {
+		if (refseqs.size() == 0) return false;
+		
 		Refseq refseq = null;
-		refseq = biodb.refseq_db.get(refseq_ids.get(0));
+		refseq = refseqs.get(0);
 		if (refseq.is_invalid) return false;
 		
 		Gene gene = refseq.gene;
-		for (int i=1; i<refseq_ids.size(); i++) {
-			refseq = biodb.refseq_db.get(refseq_ids.get(i));
+		for (int i=1; i<refseqs.size(); i++) {
+			refseq = refseqs.get(i);
 			if (refseq.is_invalid) return false;
 			if (refseq.gene != gene) return false;
 		}
 		
 		return true;
 	}
-
-	void countRead(String[] refseq_ids, Integer[] positions, Integer[] lengthes) {
-		boolean[] used = new boolean[refseq_ids.length];
-		for (int i=0; i<refseq_ids.length; i++) used[i] = false;
-		
-		ArrayList<Integer>indexes = new ArrayList<Integer>();
-		for (int i=0; i<refseq_ids.length; i++) {
-			if (used[i]) continue;
-			indexes.clear();
-			
-			for (int j=i; j<refseq_ids.length; j++) {
-				if (refseq_ids[i].equals(refseq_ids[j])) {
-					indexes.add(j);
-					used[j] = true;
-				}
-			}
-			
-			int indexForCount = r.nextInt(indexes.size());
-			this.incrementSingle(refseq_ids[indexForCount], positions[indexForCount], lengthes[indexForCount]);
-		}
-	}
-
-	void incrementSingle(String refseq_id, int position, int length) {
-		RefseqInput entry = refseq_inputs.get(refseq_id);
+	
+	void incrementSingle(CountShard shard, Refseq refseq, int position, int length) {
+		RefseqInput entry = shard.get(refseq);
 		
 		entry.rawCount++;
-		entry.starting_counts[position]++;
-		
-		for (int i=0; i<length && (position+i)<entry.overlap_counts.length; i++) {
-			entry.overlap_counts[position+i]++;
-		}
+		entry.starting_counts.add(position, 1);
+		entry.addCoverage(position, length);
 	}
 }
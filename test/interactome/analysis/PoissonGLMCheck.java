@@ -0,0 +1,106 @@
+package interactome.analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * check of PoissonGLM against the coefficients of R's glm(y ~ x2 + x3 - 1, family=poisson, offset=...)
+ * (recorded by test/fixtures/poisson_glm.R), on both the row design and the cell design (DesignCells).
+ * the rows are 400 refseqs x 150 positions, so that most (gc, distance) cells sum many rows, as in bias_design=cells.
+ * run by "ant check"; exits with 1 if a coefficient differs by more than TOLERANCE (relative),
+ * or if the reference was not recorded by R.
+ *   args: fixture directory (default: test/fixtures)
+ */
+public class PoissonGLMCheck {
+	static final double TOLERANCE = 1e-6;
+	
+	public static void main(String[] args) throws Exception {
+		File directory = new File(args.length > 0 ? args[0] : "test/fixtures");
+		
+		// rows: y, gc (x2), distance (x3), offset
+		ArrayList<String[]> rows = read(new File(directory, "poisson_glm_rows.tsv.gz"));
+		int n = rows.size();
+		int[] y = new int[n];
+		double[] x2 = new double[n];
+		double[] x3 = new double[n];
+		double[] offset = new double[n];
+		for (int i=0; i<n; i++) {
+			String[] row = rows.get(i);
+			y[i] = Integer.valueOf(row[0]);
+			x2[i] = Integer.valueOf(row[1]);
+			x3[i] = Integer.valueOf(row[2]);
+			offset[i] = Double.valueOf(row[3]);
+		}
+		File coefficients = new File(directory, "poisson_glm_coefficients.tsv");
+		if (!coefficients.exists()) {
+			System.out.println(coefficients.getPath() + " does not exist; record it by poisson_glm.R.");
+			System.exit(1);
+		}
+		String[] reference = read(coefficients).get(0);
+		if (reference.length < 3 || !reference[2].startsWith("R ")) {
+			System.out.println(coefficients.getPath() + " was not recorded by R; record it again by poisson_glm.R.");
+			System.exit(1);
+		}
+		double[] expected = {Double.valueOf(reference[0]), Double.valueOf(reference[1])};
+		System.out.printf("reference: alpha %.12g, beta %.12g (%s)%n", expected[0], expected[1], reference[2]);
+		
+		boolean passed = true;
+		PoissonGLM glm = new PoissonGLM(2);
+		try {
+			// rows
+			passed &= check("rows", glm.fit(y, x2, x3, offset), expected);
+			
+			// cells of equal (gc, distance), as BiasCorrector arranges them
+			DesignCells cells = new DesignCells(n);
+			for (int i=0; i<n; i++) cells.addRow(y[i], (int)x2[i], (int)x3[i]);
+			cells.finish();
+			if (cells.cell_count * 4 > n) {
+				System.out.printf("%d rows fall into %d cells; the cell design is not exercised.%n", n, cells.cell_count);
+				passed = false;
+			}
+			cells.clearOffsets();
+			for (int i=0; i<n; i++) cells.addRowOffset(Math.exp(offset[i]));
+			passed &= check("cells (" + n + " rows in " + cells.cell_count + ")", glm.fit(cells.y, cells.x2, cells.x3, cells.offsets()), expected);
+		} finally {
+			glm.close();
+		}
+		
+		if (!passed) {
+			System.out.println("PoissonGLM check failed.");
+			System.exit(1);
+		}
+		System.out.println("PoissonGLM check passed.");
+	}
+	
+	static boolean check(String design, double[] coefficients, double[] expected) {
+		boolean passed = true;
+		for (int k=0; k<2; k++) {
+			passed &= Math.abs(coefficients[k] - expected[k]) <= TOLERANCE * Math.abs(expected[k]);
+		}
+		System.out.printf("%s: alpha %.12g, beta %.12g %s%n", design, coefficients[0], coefficients[1], passed ? "ok" : "NG");
+		return passed;
+	}
+	
+	// tab-separated lines, without comment lines (gzipped if the name ends with .gz)
+	static ArrayList<String[]> read(File file) throws Exception {
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		InputStream is = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) is = new GZIPInputStream(is, 1 << 16);
+		BufferedReader br = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+		try {
+			String l;
+			while ((l = br.readLine()) != null) {
+				if (l.isEmpty() || l.startsWith("#")) continue;
+				rows.add(l.split("\t"));
+			}
+		} finally {
+			br.close();
+		}
+		return rows;
+	}
+}